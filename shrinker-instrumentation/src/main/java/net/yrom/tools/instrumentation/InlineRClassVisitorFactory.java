@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools.instrumentation;
+
+import com.android.build.api.instrumentation.AsmClassVisitorFactory;
+import com.android.build.api.instrumentation.ClassContext;
+import com.android.build.api.instrumentation.ClassData;
+import com.android.build.api.instrumentation.InstrumentationParameters;
+
+import net.yrom.tools.InlineRSymbols;
+
+import org.gradle.api.file.ConfigurableFileCollection;
+import org.gradle.api.logging.Logging;
+import org.gradle.api.tasks.InputFiles;
+import org.gradle.api.tasks.PathSensitive;
+import org.gradle.api.tasks.PathSensitivity;
+import org.objectweb.asm.ClassVisitor;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Inlines R symbols in AGP's class instrumentation pipeline, with {@link InlineRSymbols}.
+ * <p>
+ * The pipeline can neither remove nor add classes, so R classes are kept for R8 to strip,
+ * and {@code R$styleable} references are kept as they are.
+ *
+ * @author yrom
+ */
+public abstract class InlineRClassVisitorFactory
+        implements AsmClassVisitorFactory<InlineRClassVisitorFactory.Parameters> {
+    /**
+     * Symbols of each parameters instance, which is shared by factories of all classes of a variant
+     */
+    private static final Map<Parameters, InlineRSymbols> SYMBOLS = Collections.synchronizedMap(new WeakHashMap<>());
+
+    public interface Parameters extends InstrumentationParameters {
+        /**
+         * R$*.class files of the app, taken from its classes artifacts
+         */
+        @InputFiles
+        @PathSensitive(PathSensitivity.RELATIVE)
+        ConfigurableFileCollection getRClasses();
+    }
+
+    @Override
+    public ClassVisitor createClassVisitor(ClassContext classContext, ClassVisitor nextClassVisitor) {
+        // the visitor chain runs on ASM of android gradle plugin, which may visit newer attributes
+        int api = getInstrumentationContext().getApiVersion().get();
+        return symbols().newClassVisitor(api, nextClassVisitor);
+    }
+
+    @Override
+    public boolean isInstrumentable(ClassData classData) {
+        return !InlineRSymbols.isRClass(classData.getClassName().replace('.', '/'))
+                && !symbols().isEmpty();
+    }
+
+    /**
+     * R classes are walked and parsed once per parameters instance, the first caller parses them
+     * while the others wait.
+     */
+    private InlineRSymbols symbols() {
+        return SYMBOLS.computeIfAbsent(getParameters().get(), parameters -> {
+            InlineRSymbols symbols = InlineRSymbols.fromRClasses(parameters.getRClasses().getFiles().stream()
+                    .sorted()
+                    .map(File::toPath)
+                    .collect(Collectors.toList()));
+            if (symbols.isEmpty()) {
+                Logging.getLogger(InlineRClassVisitorFactory.class)
+                        .warn("No R symbols found, classes are left as they are");
+            }
+            return symbols;
+        });
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools.instrumentation;
+
+import com.android.build.api.instrumentation.FramesComputationMode;
+import com.android.build.api.instrumentation.InstrumentationScope;
+import com.android.build.api.artifact.MultipleArtifact;
+import com.android.build.api.variant.AndroidComponentsExtension;
+import com.android.build.api.variant.Variant;
+
+import net.yrom.tools.ShrinkerExtension;
+
+import org.gradle.api.Action;
+import org.gradle.api.Project;
+import org.gradle.api.tasks.util.PatternFilterable;
+
+import java.util.stream.Collectors;
+
+import kotlin.Unit;
+
+/**
+ * Registers {@link InlineRClassVisitorFactory} to variants, for android gradle plugin 7.2 and above.
+ *
+ * @author yrom
+ */
+final class InlineRInstrumentation {
+
+    private static final Action<PatternFilterable> R_CLASSES = pattern -> pattern.include("**/R$*.class");
+
+    private InlineRInstrumentation() {
+    }
+
+    /**
+     * Called by {@link net.yrom.tools.ShrinkerPlugin} reflectively,
+     * since this is compiled against newer android gradle plugin.
+     */
+    @SuppressWarnings("unchecked")
+    static void register(Project project, ShrinkerExtension config) {
+        AndroidComponentsExtension<?, ?, Variant> components =
+                project.getExtensions().getByType(AndroidComponentsExtension.class);
+        components.onVariants(components.selector().all(), variant -> {
+            if (!config.inlineR || "debug".equals(variant.getBuildType())) {
+                return;
+            }
+            // R.txt is not a public artifact, R classes are decompiled from classes artifacts,
+            // which carry the tasks producing them
+            variant.getInstrumentation().transformClassesWith(InlineRClassVisitorFactory.class,
+                    InstrumentationScope.ALL, params -> {
+                        params.getRClasses().from(variant.getArtifacts()
+                                .getAll(MultipleArtifact.ALL_CLASSES_DIRS.INSTANCE)
+                                .map(dirs -> dirs.stream()
+                                        .map(dir -> project.fileTree(dir).matching(R_CLASSES))
+                                        .collect(Collectors.toList())));
+                        params.getRClasses().from(variant.getArtifacts()
+                                .getAll(MultipleArtifact.ALL_CLASSES_JARS.INSTANCE)
+                                .map(jars -> jars.stream()
+                                        .map(jar -> project.zipTree(jar).matching(R_CLASSES))
+                                        .collect(Collectors.toList())));
+                        return Unit.INSTANCE;
+                    });
+            // only constants are pushed in place of fields, frames are kept valid
+            variant.getInstrumentation().setAsmFramesComputationMode(FramesComputationMode.COPY_FRAMES);
+        });
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * In-memory cache of transformed classes, lives as long as the classloader of the plugin,
+ * which gradle daemon keeps across builds. Classes are keyed by the hash of their bytes
+ * and the fingerprint of symbols, least recently used ones are evicted beyond the size limit.
+ *
+ * @author yrom
+ */
+final class ClassCache {
+    /**
+     * Marks a class which may refer to R but is left as it is by the transform
+     */
+    private static final byte[] UNCHANGED = new byte[0];
+    /**
+     * Bytes of a key, an entry of the map and its references
+     */
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int SEGMENTS = 16;
+    private static ClassCache shared;
+
+    private final long maxBytes;
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    private ClassCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(maxBytes / SEGMENTS);
+        }
+    }
+
+    /**
+     * @return the cache shared by builds, a new one if its size is changed
+     */
+    static synchronized ClassCache shared(int megabytes) {
+        long maxBytes = megabytes * 1024L * 1024L;
+        if (shared == null || shared.maxBytes != maxBytes) {
+            shared = new ClassCache(maxBytes);
+        }
+        return shared;
+    }
+
+    /**
+     * @return transform which looks up the cache for classes which may refer to R, counting hits of itself
+     */
+    CachedTransform wrap(Function<byte[], byte[]> transform, String symbolsFingerprint) {
+        return new CachedTransform(transform, symbolsFingerprint);
+    }
+
+    long sizeInBytes() {
+        long size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.bytes;
+            }
+        }
+        return size;
+    }
+
+    private Segment segmentOf(HashCode key) {
+        return segments[(key.asInt() & 0x7fffffff) % SEGMENTS];
+    }
+
+    final class CachedTransform implements Function<byte[], byte[]> {
+        private final Function<byte[], byte[]> transform;
+        private final String symbolsFingerprint;
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+
+        private CachedTransform(Function<byte[], byte[]> transform, String symbolsFingerprint) {
+            this.transform = transform;
+            this.symbolsFingerprint = symbolsFingerprint;
+        }
+
+        /**
+         * Classes which never refer to R are told by {@link ConstantPoolScanner} cheaper than hashing them,
+         * they are neither looked up nor cached.
+         */
+        @Override
+        public byte[] apply(byte[] origin) {
+            if (!ConstantPoolScanner.attemptToVisitR(origin)) {
+                return origin;
+            }
+            HashCode key = Hashing.murmur3_128().newHasher()
+                    .putBytes(origin)
+                    .putUnencodedChars(symbolsFingerprint)
+                    .hash();
+            Segment segment = segmentOf(key);
+            byte[] cached;
+            synchronized (segment) {
+                cached = segment.get(key);
+            }
+            if (cached != null) {
+                hits.increment();
+                return cached == UNCHANGED ? origin : cached;
+            }
+            misses.increment();
+            byte[] transformed = transform.apply(origin);
+            synchronized (segment) {
+                segment.put(key, transformed == origin ? UNCHANGED : transformed);
+            }
+            return transformed;
+        }
+
+        Stats stats() {
+            return new Stats(hits.sum(), misses.sum(), sizeInBytes());
+        }
+    }
+
+    /**
+     * Snapshot of hits of a {@link CachedTransform} and the size of the cache.
+     */
+    static final class Stats {
+        final long hits;
+        final long misses;
+        final long bytes;
+
+        Stats(long hits, long misses, long bytes) {
+            this.hits = hits;
+            this.misses = misses;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            long total = hits + misses;
+            return String.format("class cache hits %d/%d (%.1f%%), %d KB in use",
+                    hits, total, total == 0 ? 0.0 : hits * 100.0 / total, bytes / 1024);
+        }
+    }
+
+    /**
+     * Least recently used first, guarded by itself.
+     */
+    private static final class Segment extends LinkedHashMap<HashCode, byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final long maxBytes;
+        long bytes;
+
+        Segment(long maxBytes) {
+            super(16, 0.75f, true);
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public byte[] put(HashCode key, byte[] value) {
+            byte[] old = super.put(key, value);
+            bytes += ENTRY_OVERHEAD + value.length;
+            if (old != null) {
+                bytes -= ENTRY_OVERHEAD + old.length;
+            }
+            Iterator<Map.Entry<HashCode, byte[]>> eldest = entrySet().iterator();
+            while (bytes > maxBytes && eldest.hasNext()) {
+                bytes -= ENTRY_OVERHEAD + eldest.next().getValue().length;
+                eldest.remove();
+            }
+            return old;
+        }
+    }
+}
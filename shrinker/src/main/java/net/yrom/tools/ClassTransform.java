@@ -17,15 +17,14 @@
 package net.yrom.tools;
 
 import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
 
 import java.util.function.Function;
 
-import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
-import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
-
 /**
+ * Parse class only once, classes that never refer to R are filtered by
+ * {@link ConstantPoolScanner} without visiting them.
+ *
  * @author yrom
  */
 class ClassTransform implements Function<byte[], byte[]> {
@@ -38,16 +37,15 @@ class ClassTransform implements Function<byte[], byte[]> {
     @Override
     public byte[] apply(byte[] origin) {
         ClassReader reader = new ClassReader(origin);
-        PredicateClassVisitor precondition = new PredicateClassVisitor();
-        reader.accept(precondition, SKIP_DEBUG | SKIP_FRAMES);
-        if (!precondition.isAttemptToVisitR()) {
+        if (!ConstantPoolScanner.attemptToVisitR(reader)) {
             return origin;
         }
         // don't pass reader to the writer.
         // or it will copy 'CONSTANT POOL' that contains no used entries to lead proguard running failed!
         ClassWriter writer = new ClassWriter(0);
-        ClassVisitor visitor = new ShrinkRClassVisitor(writer, rSymbols);
+        ShrinkRClassVisitor visitor = new ShrinkRClassVisitor(writer, rSymbols);
         reader.accept(visitor, 0);
-        return writer.toByteArray();
+        // the scanner may be too optimistic
+        return visitor.isChanged() ? writer.toByteArray() : origin;
     }
 }
\ No newline at end of file
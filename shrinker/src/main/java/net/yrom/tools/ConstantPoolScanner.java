@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.objectweb.asm.ClassReader;
+
+import static net.yrom.tools.ShrinkRClassVisitor.isRClass;
+
+/**
+ * Check class if attempt to access R by scanning its constant pool only,
+ * which is much cheaper than visiting the whole class with ASM.
+ * <p>
+ * Both {@code GETSTATIC R$id.xxx} and inner class {@code R$id} refer to
+ * a {@code CONSTANT_Class} entry of R, so a class without such entry
+ * will never be changed by {@link ShrinkRClassVisitor}.
+ *
+ * @author yrom
+ */
+final class ConstantPoolScanner {
+    private static final int CONSTANT_CLASS = 7;
+
+    private ConstantPoolScanner() {
+    }
+
+    static boolean attemptToVisitR(byte[] classBytes) {
+        return attemptToVisitR(new ClassReader(classBytes));
+    }
+
+    /**
+     * @return true if any class in the constant pool looks like {@code .+/R$.+}
+     */
+    static boolean attemptToVisitR(ClassReader reader) {
+        char[] buf = null;
+        for (int i = 1, count = reader.getItemCount(); i < count; i++) {
+            int offset = reader.getItem(i);
+            // 0 for the 2nd slot of long and double
+            if (offset == 0 || reader.readByte(offset - 1) != CONSTANT_CLASS) {
+                continue;
+            }
+            if (buf == null) {
+                buf = new char[reader.getMaxStringLength()];
+            }
+            String name = reader.readUTF8(offset, buf);
+            if (name.indexOf('$') > 0 && isRClass(name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.function.IntToLongFunction;
+import java.util.function.ToLongFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Decides how to split work into parallel tasks by estimated cost rather than by count,
+ * cost of a file is measured as its size in bytes.
+ *
+ * @author yrom
+ */
+final class CostModel {
+    /**
+     * Fixed cost of a file besides its bytes, like open, stat and close.
+     */
+    static final long FILE_OVERHEAD = 8 * 1024;
+    /**
+     * Below this, handing work to another thread costs more than it saves.
+     */
+    static final long MIN_TASK_COST = 256 * 1024;
+    private static final ThreadLocal<Boolean> SEQUENTIAL = new ThreadLocal<>();
+
+    private CostModel() {
+    }
+
+    /**
+     * Run action without splitting its work, e.g. on a thread whose siblings are scheduled by gradle.
+     */
+    static void runSequentially(Runnable action) {
+        Boolean last = SEQUENTIAL.get();
+        SEQUENTIAL.set(Boolean.TRUE);
+        try {
+            action.run();
+        } finally {
+            SEQUENTIAL.set(last);
+        }
+    }
+
+    /**
+     * @return parallelism of the pool the caller is running in
+     */
+    static int parallelism() {
+        if (SEQUENTIAL.get() != null) {
+            return 1;
+        }
+        return ForkJoinTask.inForkJoinPool()
+                ? ForkJoinTask.getPool().getParallelism()
+                : ForkJoinPool.getCommonPoolParallelism();
+    }
+
+    /**
+     * Group items in order into batches of about the same cost, small items are batched together
+     * and an item heavier than a batch is a batch itself. There are several batches per thread,
+     * so that threads which finish early can steal the rest.
+     *
+     * @return a single batch of all items if it's not worth running in parallel
+     */
+    static <T> List<List<T>> split(List<T> items, ToLongFunction<? super T> cost) {
+        List<int[]> ranges = splitRange(items.size(), i -> cost.applyAsLong(items.get(i)));
+        List<List<T>> batches = new ArrayList<>(ranges.size());
+        for (int[] range : ranges) {
+            batches.add(items.subList(range[0], range[1]));
+        }
+        return batches;
+    }
+
+    /**
+     * Same as {@link #split(List, ToLongFunction)}, but on indices.
+     *
+     * @return ranges of {@code [from, to)}
+     */
+    static List<int[]> splitRange(int size, IntToLongFunction cost) {
+        int parallelism = parallelism();
+        if (parallelism <= 1 || size <= 1) {
+            return Collections.singletonList(new int[]{0, size});
+        }
+        long[] costs = new long[size];
+        long total = 0;
+        for (int i = 0; i < size; i++) {
+            costs[i] = Math.max(0, cost.applyAsLong(i)) + FILE_OVERHEAD;
+            total += costs[i];
+        }
+        if (total < 2 * MIN_TASK_COST) {
+            return Collections.singletonList(new int[]{0, size});
+        }
+        long target = Math.max(MIN_TASK_COST, total / (parallelism * 4L));
+        List<int[]> ranges = new ArrayList<>();
+        int from = 0;
+        long rangeCost = 0;
+        for (int i = 0; i < size; i++) {
+            rangeCost += costs[i];
+            if (rangeCost >= target) {
+                ranges.add(new int[]{from, i + 1});
+                from = i + 1;
+                rangeCost = 0;
+            }
+        }
+        if (from < size) {
+            ranges.add(new int[]{from, size});
+        }
+        return ranges;
+    }
+
+    /**
+     * Run action on items, in parallel batches if they are heavy enough.
+     */
+    static <T> void forEach(List<T> items, ToLongFunction<? super T> cost, Consumer<? super T> action) {
+        List<List<T>> batches = split(items, cost);
+        if (batches.size() == 1) {
+            items.forEach(action);
+        } else {
+            invokeAll(batches.stream()
+                    .map(batch -> ForkJoinTask.adapt(() -> batch.forEach(action)))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Run action on indices {@code [0, size)}, in parallel ranges if they are heavy enough.
+     */
+    static void forEachIndex(int size, IntToLongFunction cost, IntConsumer action) {
+        List<int[]> ranges = splitRange(size, cost);
+        if (ranges.size() == 1) {
+            IntStream.range(0, size).forEach(action);
+        } else {
+            invokeAll(ranges.stream()
+                    .map(range -> ForkJoinTask.adapt(() -> IntStream.range(range[0], range[1]).forEach(action)))
+                    .collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Fork tasks into the caller's pool, or the common pool, idle workers steal them from the caller,
+     * whose join helps run the rest, so nested calls don't block threads.
+     */
+    private static void invokeAll(List<ForkJoinTask<?>> tasks) {
+        if (ForkJoinTask.inForkJoinPool()) {
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            ForkJoinPool.commonPool().invoke(ForkJoinTask.adapt(() -> ForkJoinTask.invokeAll(tasks)));
+        }
+    }
+}
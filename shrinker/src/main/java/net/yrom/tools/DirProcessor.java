@@ -16,79 +16,114 @@
 
 package net.yrom.tools;
 
-import com.google.common.collect.ImmutableList;
+import com.android.build.api.transform.Status;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.*;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
  * @author yrom
  * @version 2017/11/29
  */
 class DirProcessor extends ClassesProcessor {
-    private static PathMatcher CASE_R_FILE =
-            FileSystems.getDefault().getPathMatcher("regex:^R\\.class|R\\$[a-z]+\\.class$");
+    private final List<InputIndex.Entry> files;
 
-    private static DirectoryStream.Filter<Path> CLASS_TRANSFORM_FILTER =
-            path -> Files.isDirectory(path)
-                    || (Files.isRegularFile(path)
-                    && !CASE_R_FILE.matches(path.getFileName()));
-
-    DirProcessor(Function<byte[], byte[]> classTransform, Path src, Path dst) {
+    /**
+     * @param files files under src, from {@link InputIndex}
+     */
+    DirProcessor(Function<byte[], byte[]> classTransform, Path src, Path dst, List<InputIndex.Entry> files) {
         super(classTransform, src, dst);
+        this.files = files;
     }
 
     @Override
     public void proceed() {
-        List<Path> files = resolveSources();
-        if (files.size() >= Runtime.getRuntime().availableProcessors()) {
-            files.parallelStream().forEach(this::proceedFile);
-        } else {
-            files.forEach(this::proceedFile);
+        List<InputIndex.Entry> sources = files.stream()
+                .filter(entry -> entry.kind != InputIndex.Kind.R_CLASS)
+                .collect(Collectors.toList());
+        // create output directories once, before files are spread over threads
+        Set<Path> dirs = new HashSet<>();
+        try {
+            for (InputIndex.Entry entry : sources) {
+                Path parent = targetOf(entry.file.toPath()).getParent();
+                if (dirs.add(parent)) {
+                    Files.createDirectories(parent);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
+        CostModel.forEach(sources, entry -> entry.size, entry -> proceedFile(entry.file.toPath(), false));
     }
 
-    private void proceedFile(Path source) {
-        String name = source.getFileName().toString();
-        Path target = dst.resolve(name);
-        if (Files.isDirectory(source)) {
-            new DirProcessor(classTransform, source, target).proceed();
-        } else if (Files.isRegularFile(source)) {
-            log.debug("transform file {}... ", source);
-            try {
-                if (Files.notExists(dst)) {
-                    Files.createDirectories(dst);
-                }
-                if (source.getFileName().toString().endsWith(".class")) {
-                    byte[] bytes = classTransform.apply(Files.readAllBytes(source));
-                    Files.write(target, bytes);
-                } else {
-                    // copy non-class file!
-                    Files.copy(source, target, StandardCopyOption.REPLACE_EXISTING);
-                }
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            } catch (Exception e) {
-                log.warn("error occurred on " + source, e);
-                throw e;
+    private Path targetOf(Path source) {
+        return dst.resolve(src.relativize(source).toString());
+    }
+
+    /**
+     * Proceed only the changed files of an incremental build.
+     *
+     * @param changedFiles files under {@link #src} and their status
+     */
+    void proceed(Map<File, Status> changedFiles) {
+        changedFiles.forEach((file, status) -> {
+            Path source = file.toPath();
+            switch (status) {
+                case NOTCHANGED:
+                    break;
+                case REMOVED:
+                    try {
+                        Files.deleteIfExists(targetOf(source));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    break;
+                default: // ADDED or CHANGED
+                    if (Files.isRegularFile(source) && InputIndex.kindOf(source) != InputIndex.Kind.R_CLASS) {
+                        proceedFile(source, true);
+                    }
             }
-        }
+        });
     }
 
-    private List<Path> resolveSources() {
-        ImmutableList.Builder<Path> list = ImmutableList.builder();
-        try (DirectoryStream<Path> dir = Files.newDirectoryStream(src, CLASS_TRANSFORM_FILTER)) {
-            for (Path file : dir) {
-                list.add(file);
+    /**
+     * @param createParent false if the parent of target is created already
+     */
+    private void proceedFile(Path source, boolean createParent) {
+        Path target = targetOf(source);
+        log.debug("transform file {}... ", source);
+        try {
+            if (createParent) {
+                Files.createDirectories(target.getParent());
+            }
+            // it may be written by last build
+            Files.deleteIfExists(target);
+            if (source.getFileName().toString().endsWith(".class")) {
+                byte[] origin = Files.readAllBytes(source);
+                byte[] bytes = classTransform.apply(origin);
+                if (bytes == origin) {
+                    // untouched, copied in kernel or cloned rather than written from the heap
+                    FileCopier.copy(source, target);
+                } else {
+                    Files.write(target, bytes);
+                }
+            } else {
+                // copy non-class file!
+                FileCopier.copy(source, target);
             }
-        } catch (DirectoryIteratorException e) {
-            throw new UncheckedIOException(e.getCause());
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } catch (Exception e) {
+            log.warn("error occurred on " + source, e);
+            throw e;
         }
-        return list.build();
     }
 }
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.nio.file.StandardOpenOption.CREATE_NEW;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static net.yrom.tools.ShrinkerPlugin.logger;
+
+/**
+ * Copies files as cheap as the file system allows: hard link first, then copy-on-write clone
+ * (reflink), and finally copy the bytes in kernel by {@link FileChannel#transferTo}.
+ * <p>
+ * Links share the inode, so they are only made of immutable files, like jars of external libraries
+ * and entries of {@link JarCache}. Class files of javac, jars of sub-projects and intermediates
+ * are rewritten in place, which would change outputs behind gradle's snapshots,
+ * so they are {@link #copy(Path, Path) copied}.
+ *
+ * @author yrom
+ */
+final class FileCopier {
+    enum Strategy {
+        HARD_LINK, REFLINK, TRANSFER
+    }
+
+    /**
+     * Cloning forks a 'cp' process, not worth it for small files
+     */
+    private static final long REFLINK_MIN_SIZE = 1024 * 1024;
+    private static final String[] REFLINK_COMMAND = reflinkCommand();
+    private static final LongAdder[] COUNTS = newAdders();
+    private static final LongAdder[] BYTES = newAdders();
+    /**
+     * File stores on which cloning failed, most likely the file system doesn't support it
+     */
+    private static final ConcurrentMap<FileStore, Boolean> REFLINK_UNSUPPORTED = new ConcurrentHashMap<>();
+
+    private FileCopier() {
+    }
+
+    /**
+     * @param src never modified in place
+     * @param dst must not exist
+     * @return strategy actually used
+     */
+    static Strategy linkOrCopy(Path src, Path dst) throws IOException {
+        return copy(src, dst, true);
+    }
+
+    /**
+     * Copy without sharing the inode, the copy is left as it is if src is rewritten.
+     *
+     * @param dst must not exist
+     * @return strategy actually used
+     */
+    static Strategy copy(Path src, Path dst) throws IOException {
+        return copy(src, dst, false);
+    }
+
+    private static Strategy copy(Path src, Path dst, boolean link) throws IOException {
+        Strategy strategy;
+        long size = Files.size(src);
+        if (link && tryLink(src, dst)) {
+            strategy = Strategy.HARD_LINK;
+        } else if (size >= REFLINK_MIN_SIZE && tryReflink(src, dst)) {
+            strategy = Strategy.REFLINK;
+        } else {
+            transfer(src, dst, size);
+            strategy = Strategy.TRANSFER;
+        }
+        COUNTS[strategy.ordinal()].increment();
+        BYTES[strategy.ordinal()].add(size);
+        return strategy;
+    }
+
+    /**
+     * @return counters of each strategy since the daemon started, see {@link Stats#since(Stats)}
+     */
+    static Stats stats() {
+        long[] counts = new long[COUNTS.length];
+        long[] bytes = new long[BYTES.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = COUNTS[i].sum();
+            bytes[i] = BYTES[i].sum();
+        }
+        return new Stats(counts, bytes);
+    }
+
+    private static boolean tryLink(Path src, Path dst) {
+        try {
+            Files.createLink(dst, src);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // cross file store or not supported
+            return false;
+        }
+    }
+
+    private static boolean tryReflink(Path src, Path dst) {
+        if (REFLINK_COMMAND == null) return false;
+        FileStore store;
+        try {
+            store = Files.getFileStore(dst.getParent());
+            if (!store.equals(Files.getFileStore(src))) {
+                // can't clone across file stores, which says nothing about either of them
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        if (REFLINK_UNSUPPORTED.containsKey(store)) return false;
+        String[] command = REFLINK_COMMAND.clone();
+        command[command.length - 2] = src.toString();
+        command[command.length - 1] = dst.toString();
+        try {
+            Process process = new ProcessBuilder(command)
+                    .redirectErrorStream(true)
+                    .start();
+            process.getOutputStream().close();
+            // only an error message is printed, read it all so 'cp' won't block on a full pipe
+            String output;
+            try (InputStream in = process.getInputStream()) {
+                output = IOUtils.toString(in, Charset.defaultCharset()).trim();
+            }
+            if (process.waitFor(1, TimeUnit.MINUTES) && process.exitValue() == 0) {
+                return true;
+            }
+            process.destroyForcibly();
+            logger.debug("Failed to clone {} on {}: {}", src, store, output);
+        } catch (IOException e) {
+            logger.debug("Failed to clone " + src, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            deleteQuietly(dst);
+            return false;
+        }
+        REFLINK_UNSUPPORTED.put(store, Boolean.TRUE);
+        deleteQuietly(dst);
+        return false;
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static void transfer(Path src, Path dst, long size) throws IOException {
+        try (FileChannel in = FileChannel.open(src, READ);
+             FileChannel out = FileChannel.open(dst, CREATE_NEW, WRITE)) {
+            long position = 0;
+            while (position < size) {
+                long transferred = in.transferTo(position, size - position, out);
+                if (transferred <= 0) break; // truncated by others
+                position += transferred;
+            }
+        }
+    }
+
+    private static String[] reflinkCommand() {
+        String os = System.getProperty("os.name", "").toLowerCase(Locale.ROOT);
+        if (os.contains("linux")) {
+            return new String[]{"cp", "--reflink=always", null, null};
+        }
+        if (os.contains("mac")) {
+            // clonefile(2) on APFS
+            return new String[]{"cp", "-c", null, null};
+        }
+        return null;
+    }
+
+    private static LongAdder[] newAdders() {
+        LongAdder[] adders = new LongAdder[Strategy.values().length];
+        for (int i = 0; i < adders.length; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    static final class Stats {
+        private final long[] counts;
+        private final long[] bytes;
+
+        private Stats(long[] counts, long[] bytes) {
+            this.counts = counts;
+            this.bytes = bytes;
+        }
+
+        /**
+         * @return counters since the earlier one
+         */
+        Stats since(Stats earlier) {
+            long[] counts = this.counts.clone();
+            long[] bytes = this.bytes.clone();
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] -= earlier.counts[i];
+                bytes[i] -= earlier.bytes[i];
+            }
+            return new Stats(counts, bytes);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("copied files:");
+            for (Strategy strategy : Strategy.values()) {
+                int i = strategy.ordinal();
+                sb.append(' ').append(strategy.name().toLowerCase(Locale.ROOT))
+                        .append(' ').append(counts[i])
+                        .append(" (").append(bytes[i] / 1024).append(" KB)");
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.android.build.api.transform.Status;
+import com.google.common.hash.Hashing;
+
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.FileUtils;
+import org.gradle.workers.IsolationMode;
+import org.gradle.workers.WorkerExecutor;
+import org.objectweb.asm.ClassReader;
+
+import java.io.File;
+import java.net.URISyntaxException;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+
+/**
+ * Submits units to gradle workers in isolated classloaders, one work item each, so that gradle can schedule
+ * them with other tasks under its {@code --max-workers}. Units must be submitted from the task thread,
+ * which holds a worker lease of gradle.
+ * <p>
+ * Workers load symbols from the cache written by {@link RSymbols}, nothing is shared with the transform,
+ * so each unit is proceeded by one thread, siblings are run by other workers.
+ *
+ * @author yrom
+ */
+final class GradleWorkers implements WorkUnit.Runner {
+    /**
+     * State last loaded by workers in the isolated classloader
+     */
+    private static volatile Loaded loaded;
+
+    private final WorkerExecutor executor;
+    private final IsolationMode isolation;
+    private final File symbolsCache;
+    private final String fingerprint;
+    private final ShrinkerConfig config;
+    private final JarCache jarCache;
+
+    /**
+     * @param symbolsCache cache of the symbols, which workers load symbols from
+     */
+    GradleWorkers(WorkerExecutor executor, ShrinkerConfig config, File symbolsCache,
+                  String fingerprint, JarCache jarCache) {
+        this.executor = executor;
+        this.isolation = config.workerIsolation;
+        this.config = config;
+        this.symbolsCache = symbolsCache;
+        this.fingerprint = fingerprint;
+        this.jarCache = jarCache;
+    }
+
+    @Override
+    public void run(List<WorkUnit> units) {
+        Set<File> classpath = classpath();
+        for (WorkUnit unit : WorkUnit.heaviestFirst(units)) {
+            executor.submit(Action.class, config -> {
+                config.setIsolationMode(isolation);
+                config.setDisplayName("inlineR " + unit);
+                config.classpath(classpath);
+                config.setParams(unit, symbolsCache, fingerprint, this.config, jarCache);
+            });
+        }
+        executor.await();
+    }
+
+    /**
+     * Jars of the plugin and its dependencies, gradle api is always visible to workers.
+     */
+    private static Set<File> classpath() {
+        Set<File> files = new LinkedHashSet<>();
+        for (Class<?> type : new Class<?>[]{GradleWorkers.class, Status.class, ClassReader.class,
+                ZipFile.class, FileUtils.class, Hashing.class}) {
+            try {
+                files.add(new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()));
+            } catch (URISyntaxException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return files;
+    }
+
+    private static final class Loaded {
+        final String fingerprint;
+        final Function<byte[], byte[]> transform;
+        final MemoryBudget budget;
+
+        Loaded(String fingerprint, Function<byte[], byte[]> transform, MemoryBudget budget) {
+            this.fingerprint = fingerprint;
+            this.transform = transform;
+            this.budget = budget;
+        }
+    }
+
+    public static class Action implements Runnable {
+        private final WorkUnit unit;
+        private final File symbolsCache;
+        private final String fingerprint;
+        private final ShrinkerConfig config;
+        private final JarCache jarCache;
+
+        @Inject
+        public Action(WorkUnit unit, File symbolsCache, String fingerprint, ShrinkerConfig config,
+                      JarCache jarCache) {
+            this.unit = unit;
+            this.symbolsCache = symbolsCache;
+            this.fingerprint = fingerprint;
+            this.config = config;
+            this.jarCache = jarCache;
+        }
+
+        @Override
+        public void run() {
+            Loaded state = load();
+            // siblings are run by other workers, don't compete with them
+            CostModel.runSequentially(() ->
+                    unit.newProcessor(state.transform, state.budget, new JarScanner(Runnable::run), jarCache,
+                            config.jarCompression).proceed());
+        }
+
+        private Loaded load() {
+            Loaded state = loaded;
+            if (state != null && state.fingerprint.equals(fingerprint)) {
+                return state;
+            }
+            synchronized (GradleWorkers.class) {
+                state = loaded;
+                if (state == null || !state.fingerprint.equals(fingerprint)) {
+                    RSymbols rSymbols = RSymbols.readFrom(symbolsCache.toPath());
+                    if (rSymbols == null || !rSymbols.fingerprint().equals(fingerprint)) {
+                        throw new IllegalStateException("Symbols cache " + symbolsCache + " is out of date");
+                    }
+                    Function<byte[], byte[]> transform = new ClassTransform(rSymbols);
+                    if (config.classCacheSize > 0) {
+                        transform = ClassCache.shared(config.classCacheSize).wrap(transform, fingerprint);
+                    }
+                    state = new Loaded(fingerprint, transform, MemoryBudget.ofMegabytes(config.jarMemoryBudget));
+                    loaded = state;
+                }
+                return state;
+            }
+        }
+    }
+}
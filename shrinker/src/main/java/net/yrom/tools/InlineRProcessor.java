@@ -16,11 +16,18 @@
 
 package net.yrom.tools;
 
+import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.JarInput;
 import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.Status;
 import com.android.build.api.transform.TransformInput;
 
+import java.io.File;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -30,44 +37,83 @@ import java.util.stream.Stream;
  */
 final class InlineRProcessor implements Processor {
     private Collection<TransformInput> inputs;
+    private InputIndex index;
     private Function<QualifiedContent, Path> getTargetPath;
-    private Function<byte[], byte[]> transform;
+    private boolean incremental;
+    private WorkUnit.Runner runner;
 
+    /**
+     * @param index       files of the directory inputs
+     * @param incremental true to proceed only the changed inputs,
+     *                    outputs of the others are kept from previous build
+     * @param runner      runs units of the inputs
+     */
     InlineRProcessor(Collection<TransformInput> inputs,
-                     Function<byte[], byte[]> transform,
-                     Function<QualifiedContent, Path> getTargetPath) {
+                     InputIndex index,
+                     Function<QualifiedContent, Path> getTargetPath,
+                     boolean incremental,
+                     WorkUnit.Runner runner) {
         this.inputs = inputs;
+        this.index = index;
         this.getTargetPath = getTargetPath;
-        this.transform = transform;
+        this.incremental = incremental;
+        this.runner = runner;
     }
 
     @Override
     public void proceed() {
-        Stream.concat(
-                streamOf(inputs, TransformInput::getDirectoryInputs).map(input -> {
-                    Path src = input.getFile().toPath();
-                    Path dst = getTargetPath.apply(input);
-                    return new DirProcessor(transform, src, dst);
-                }),
-                streamOf(inputs, TransformInput::getJarInputs).map(input -> {
-                    Path src = input.getFile().toPath();
-                    Path dst = getTargetPath.apply(input);
-                    return new JarProcessor(transform, src, dst);
-                })
-        ).forEach(Processor::proceed);
+        List<WorkUnit> units = Stream.concat(
+                streamOf(inputs, TransformInput::getDirectoryInputs).map(this::dirUnit),
+                streamOf(inputs, TransformInput::getJarInputs).map(this::jarUnit))
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+        runner.run(units);
+    }
+
+    private WorkUnit dirUnit(DirectoryInput input) {
+        File src = input.getFile();
+        File dst = getTargetPath.apply(input).toFile();
+        if (!src.exists()) {
+            // whole directory was removed
+            return incremental ? WorkUnit.ofDirectory(src, dst, Collections.emptyList()) : null;
+        }
+        if (!incremental) {
+            return WorkUnit.ofDirectory(src, dst, index.filesOf(src));
+        }
+        if (input.getChangedFiles().isEmpty()) {
+            return null;
+        }
+        return WorkUnit.ofChangedFiles(src, dst, input.getChangedFiles());
+    }
+
+    private WorkUnit jarUnit(JarInput input) {
+        File src = input.getFile();
+        File dst = getTargetPath.apply(input).toFile();
+        Status status = incremental ? input.getStatus() : Status.ADDED;
+        switch (status) {
+            case NOTCHANGED:
+                return null;
+            case REMOVED:
+                return WorkUnit.ofJar(src, dst, false);
+            default: // ADDED or CHANGED
+                return src.exists() ? WorkUnit.ofJar(src, dst, isImmutable(input)) : null;
+        }
+    }
+
+    /**
+     * Jars of external libraries are stored by gradle and never rewritten, but jars of sub-projects
+     * and intermediates are rewritten in place by their tasks.
+     */
+    private static boolean isImmutable(JarInput input) {
+        return Collections.singleton(QualifiedContent.Scope.EXTERNAL_LIBRARIES).equals(input.getScopes());
     }
 
     private static <T extends QualifiedContent> Stream<T> streamOf(
             Collection<TransformInput> inputs,
             Function<TransformInput, Collection<T>> mapping) {
-        Collection<T> list = inputs.stream()
+        return inputs.stream()
                 .map(mapping)
-                .flatMap(Collection::stream)
-                .collect(Collectors.toList());
-        if (list.size() >= Runtime.getRuntime().availableProcessors())
-            return list.parallelStream();
-        else
-            return list.stream();
+                .flatMap(Collection::stream);
     }
 
 }
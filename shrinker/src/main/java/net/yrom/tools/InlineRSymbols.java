@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.objectweb.asm.ClassVisitor;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Public entry of inlining R symbols for 'shrinker-instrumentation', which is built separately
+ * and may be loaded by another classloader, so it can't reach package-private classes here.
+ *
+ * @author yrom
+ */
+public final class InlineRSymbols {
+    private final RSymbols symbols;
+
+    private InlineRSymbols(RSymbols symbols) {
+        this.symbols = symbols;
+    }
+
+    /**
+     * Decompile symbols from R class files like 'R$id.class', those of libraries are skipped.
+     */
+    public static InlineRSymbols fromRClasses(List<Path> classes) {
+        return new InlineRSymbols(RSymbols.fromRClasses(classes));
+    }
+
+    public boolean isEmpty() {
+        return symbols.isEmpty();
+    }
+
+    /**
+     * @param className internal name like 'com/example/R$id'
+     * @return true if it's R or one of its inner classes
+     */
+    public static boolean isRClass(String className) {
+        return className.equals("R") || className.endsWith("/R") || ShrinkRClassVisitor.isRClass(className);
+    }
+
+    /**
+     * R classes are left as they are, so are references to styleables.
+     *
+     * @param api ASM api version of the visitor chain
+     */
+    public ClassVisitor newClassVisitor(int api, ClassVisitor next) {
+        return new ShrinkRClassVisitor(api, next, symbols, false);
+    }
+}
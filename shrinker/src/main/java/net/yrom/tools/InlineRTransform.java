@@ -20,24 +20,35 @@ import com.android.build.api.transform.DirectoryInput;
 import com.android.build.api.transform.Format;
 import com.android.build.api.transform.JarInput;
 import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.SecondaryFile;
+import com.android.build.api.transform.Status;
 import com.android.build.api.transform.Transform;
 import com.android.build.api.transform.TransformException;
 import com.android.build.api.transform.TransformInput;
 import com.android.build.api.transform.TransformInvocation;
 import com.android.build.api.transform.TransformOutputProvider;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
-import org.apache.commons.io.FileUtils;
+import org.gradle.workers.WorkerExecutor;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collection;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
 import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.android.build.api.transform.QualifiedContent.DefaultContentType.CLASSES;
 
@@ -45,10 +56,26 @@ import static com.android.build.api.transform.QualifiedContent.DefaultContentTyp
  * Transform classes with {@link InlineRProcessor}.
  */
 class InlineRTransform extends Transform {
-    private final ShrinkerExtension config;
+    private static final String FINGERPRINT_FILE_NAME = "symbols.fingerprint";
+    private static final String SYMBOLS_CACHE_FILE_NAME = "symbols.bin";
+    /**
+     * Fingerprint of outputs which are linked or copied from inputs as they are
+     */
+    private static final String PASS_THROUGH = "pass-through";
+    /**
+     * Bump it when outputs of the same inputs change, to invalidate cached outputs of older versions.
+     */
+    static final int OUTPUT_VERSION = 3;
+    private final Supplier<ShrinkerConfig> config;
+    private final Map<String, File> symbolLists;
 
-    InlineRTransform(ShrinkerExtension config) {
+    /**
+     * @param config      snapshot of the extension, taken on first use
+     * @param symbolLists R.txt of variants, keyed by capitalized variant name
+     */
+    InlineRTransform(Supplier<ShrinkerConfig> config, Map<String, File> symbolLists) {
         this.config = config;
+        this.symbolLists = symbolLists;
     }
 
     @Override
@@ -63,7 +90,7 @@ class InlineRTransform extends Transform {
 
     @Override
     public Set<? super QualifiedContent.Scope> getScopes() {
-        if (!config.inlineR) // empty scope
+        if (!config.get().inlineR) // empty scope
             return ImmutableSet.of();
         // full
         return Sets.immutableEnumSet(
@@ -74,82 +101,233 @@ class InlineRTransform extends Transform {
 
     @Override
     public Set<? super QualifiedContent.Scope> getReferencedScopes() {
-        if (config.inlineR) // empty
+        if (config.get().inlineR) // empty
             return ImmutableSet.of();
         return Sets.immutableEnumSet(QualifiedContent.Scope.PROJECT);
     }
 
     @Override
     public boolean isIncremental() {
-        return false;
+        return true;
+    }
+
+    /**
+     * Outputs depend only on contents of inputs and the parameters below.
+     */
+    @Override
+    public boolean isCacheable() {
+        return true;
+    }
+
+    /**
+     * R.txt of all variants, since the transform is shared by them, symbols are read from it if exists.
+     */
+    @Override
+    public Collection<SecondaryFile> getSecondaryFiles() {
+        return symbolLists.values().stream()
+                .map(SecondaryFile::nonIncremental)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Settings which affect outputs, the others only tune how fast they are made.
+     */
+    @Override
+    public Map<String, Object> getParameterInputs() {
+        return ImmutableMap.of(
+                "inlineR", config.get().inlineR,
+                "jarCompression", config.get().jarCompression,
+                "outputVersion", OUTPUT_VERSION);
     }
 
 
     @Override
     public void transform(TransformInvocation transformInvocation) throws TransformException, InterruptedException, IOException {
+        ShrinkerConfig config = this.config.get();
         if (!config.inlineR) {
             ShrinkerPlugin.logger.lifecycle("skip inlineR transform!");
             return;
         }
-        if (transformInvocation.isIncremental()) {
-            throw new UnsupportedOperationException("Unsupported incremental build!");
+        ForkJoinPool pool = newWorkerPool(config.parallelism);
+        try {
+            transform(transformInvocation, config, pool);
+        } finally {
+            // interrupts running workers if the build was cancelled
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Run the task in the pool, parallel streams started in the pool are run by its workers
+     * instead of the common pool, so do nested ones, no more threads than its parallelism are busy.
+     */
+    private static <T> T invoke(ForkJoinPool pool, Callable<T> task)
+            throws TransformException, InterruptedException, IOException {
+        try {
+            return pool.submit(task).get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new TransformException(cause);
+        }
+    }
+
+    private static ForkJoinPool newWorkerPool(int parallelism) {
+        if (parallelism <= 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
         }
+        return new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("inlineR-worker-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Runs in the task thread, which gradle worker api must be called from,
+     * the rest is run in the pool.
+     */
+    private void transform(TransformInvocation transformInvocation, ShrinkerConfig config,
+                           ForkJoinPool pool) throws TransformException, InterruptedException, IOException {
         long start = System.currentTimeMillis();
+        FileCopier.Stats copied = FileCopier.stats();
         TransformOutputProvider outputProvider = transformInvocation.getOutputProvider();
         // transforms/${name}/${buildType}/${index of 'styleables'}
         File styleables = outputProvider.getContentLocation("styleables", this.getInputTypes(), this.getScopes(), Format.DIRECTORY);
         String buildType = styleables.getParentFile().getName();
-        outputProvider.deleteAll();
         Collection<TransformInput> inputs = transformInvocation.getInputs();
+        // fingerprint of the symbols which outputs of last build were inlined with, it's kept in outputs,
+        // so it's restored from the build cache along with them, delete it first in case of this build fails
+        Path fingerprintFile = outputProvider.getContentLocation("fingerprint", this.getInputTypes(),
+                this.getScopes(), Format.DIRECTORY).toPath().resolve(FINGERPRINT_FILE_NAME);
+        Path temporaryDir = transformInvocation.getContext().getTemporaryDir().toPath();
+        String lastFingerprint = Files.exists(fingerprintFile)
+                ? new String(Files.readAllBytes(fingerprintFile), StandardCharsets.UTF_8)
+                : null;
+        Files.deleteIfExists(fingerprintFile);
+        // directories are scanned once on demand, shared by collecting symbols and proceeding
+        InputIndex index = InputIndex.of(inputs);
+        // debug builds gain nothing from inlining, just pass inputs through
         if (config.inlineR && !Objects.equals(buildType, "debug")) {
-            RSymbols rSymbols = new RSymbols().from(inputs);
-            if (!rSymbols.isEmpty()) {
-                new WriteStyleablesProcessor(rSymbols, styleables).proceed();
-                Function<QualifiedContent, Path> call = input -> {
-                    Format format;
-                    if (input instanceof DirectoryInput) {
-                        format = Format.DIRECTORY;
-                    } else if (input instanceof JarInput) {
-                        format = Format.JAR;
+            WorkerExecutor workers = config.workerIsolation == null
+                    ? null : transformInvocation.getContext().getWorkerExecutor();
+            // pre-scanning jars needs no symbols, overlap it with collecting symbols,
+            // unless most of them may be served by the jar cache, which doesn't scan them
+            JarScanner scanner = new JarScanner(pool);
+            if (workers == null && config.jarCacheDir == null) {
+                inputs.stream()
+                        .map(TransformInput::getJarInputs)
+                        .flatMap(Collection::stream)
+                        .filter(jar -> !transformInvocation.isIncremental()
+                                || jar.getStatus() == Status.ADDED || jar.getStatus() == Status.CHANGED)
+                        .filter(jar -> jar.getFile().isFile())
+                        .forEach(jar -> scanner.prefetch(jar.getFile().toPath()));
+            }
+            try {
+                File symbolList = symbolListOf(transformInvocation);
+                Path symbolsCache = temporaryDir.resolve(SYMBOLS_CACHE_FILE_NAME);
+                RSymbols rSymbols = invoke(pool, () -> RSymbols.from(inputs, index,
+                        symbolList == null ? null : symbolList.toPath(),
+                        symbolsCache));
+                if (!rSymbols.isEmpty()) {
+                    String fingerprint = rSymbols.fingerprint();
+                    boolean incremental = transformInvocation.isIncremental() && fingerprint.equals(lastFingerprint);
+                    if (!incremental) {
+                        if (transformInvocation.isIncremental()) {
+                            ShrinkerPlugin.logger.lifecycle("R symbols changed, rebuild all!");
+                        }
+                        outputProvider.deleteAll();
+                        new WriteStyleablesProcessor(rSymbols, styleables).proceed();
+                    }
+                    JarCache jarCache = new JarCache(config.jarCacheDir, fingerprint, config.jarCompression);
+                    if (workers != null) {
+                        // index directories in the pool, then submit units from the task thread,
+                        // workers in isolated classloader load symbols from the cache and have their own class cache
+                        invoke(pool, index::all);
+                        new InlineRProcessor(inputs, index, targetPathOf(outputProvider), incremental,
+                                new GradleWorkers(workers, config, symbolsCache.toFile(), fingerprint, jarCache)
+                        ).proceed();
                     } else {
-                        throw new UnsupportedOperationException("Unknown format readAll input " + input);
+                        ClassCache.CachedTransform cached = config.classCacheSize > 0
+                                ? ClassCache.shared(config.classCacheSize).wrap(new ClassTransform(rSymbols), fingerprint)
+                                : null;
+                        Function<byte[], byte[]> transform = cached != null ? cached : new ClassTransform(rSymbols);
+                        MemoryBudget budget = MemoryBudget.ofMegabytes(config.jarMemoryBudget);
+                        invoke(pool, () -> {
+                            new InlineRProcessor(inputs, index, targetPathOf(outputProvider), incremental, units ->
+                                    WorkUnit.proceedAll(units, transform, budget, scanner, jarCache,
+                                            config.jarCompression)
+                            ).proceed();
+                            return null;
+                        });
+                        if (cached != null) {
+                            ShrinkerPlugin.logger.info("{} {}", transformInvocation.getContext().getPath(),
+                                    cached.stats());
+                        }
                     }
-                    File f = outputProvider.getContentLocation(input.getName(), input.getContentTypes(),
-                            input.getScopes(), format);
-                    if (!f.getParentFile().exists()) f.getParentFile().mkdirs();
-                    return f.toPath();
-                };
-                new InlineRProcessor(inputs, new ClassTransform(rSymbols), call).proceed();
-                ShrinkerPlugin.logger.lifecycle("{} consume {}ms", transformInvocation.getContext().getPath(), System.currentTimeMillis() - start);
-                return;
+                    writeFingerprint(fingerprintFile, fingerprint);
+                    ShrinkerPlugin.logger.info("{} {}", transformInvocation.getContext().getPath(),
+                            FileCopier.stats().since(copied));
+                    ShrinkerPlugin.logger.lifecycle("{} consume {}ms{}", transformInvocation.getContext().getPath(),
+                            System.currentTimeMillis() - start, incremental ? " (incremental)" : "");
+                    return;
+                }
+            } finally {
+                // jars left prefetched if there is nothing to inline, or proceeding failed
+                scanner.cancel();
             }
         }
-        // just copy them...
-        for (TransformInput input : inputs) {
-            input.getDirectoryInputs().forEach(dir -> {
-                File destFolder = outputProvider.getContentLocation(dir.getName(),
-                        dir.getContentTypes(), dir.getScopes(), Format.DIRECTORY);
-                try {
-                    FileUtils.copyDirectory(dir.getFile(), destFolder);
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-            });
-            input.getJarInputs().parallelStream().forEach(jarInput -> {
-                File dest = outputProvider.getContentLocation(jarInput.getName(),
-                        jarInput.getContentTypes(), jarInput.getScopes(), Format.JAR);
-                if (dest.exists()) {
-                    throw new RuntimeException("Jar file " + jarInput.getName() + " already exists!" +
-                            " src: " + jarInput.getFile().getPath() + ", dest: " + dest.getPath());
-                }
-                try {
-                    FileUtils.copyFile(jarInput.getFile(), dest);
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-            });
+        // nothing to inline, outputs are links to jars of external libraries and copies of the others
+        boolean incremental = transformInvocation.isIncremental() && PASS_THROUGH.equals(lastFingerprint);
+        if (!incremental) {
+            outputProvider.deleteAll();
         }
-        ShrinkerPlugin.logger.info("{} copy files {} ms", transformInvocation.getContext().getPath(), System.currentTimeMillis() - start);
+        invoke(pool, () -> {
+            new InlineRProcessor(inputs, index, targetPathOf(outputProvider), incremental, units ->
+                    CostModel.forEach(WorkUnit.heaviestFirst(units), WorkUnit::estimatedCost,
+                            unit -> unit.newLinker().proceed())
+            ).proceed();
+            return null;
+        });
+        writeFingerprint(fingerprintFile, PASS_THROUGH);
+        ShrinkerPlugin.logger.info("{} pass through {} ms{}, {}", transformInvocation.getContext().getPath(),
+                System.currentTimeMillis() - start, incremental ? " (incremental)" : "",
+                FileCopier.stats().since(copied));
     }
 
-}
\ No newline at end of file
+    private static void writeFingerprint(Path file, String fingerprint) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, fingerprint.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static Function<QualifiedContent, Path> targetPathOf(TransformOutputProvider outputProvider) {
+        return input -> {
+            Format format;
+            if (input instanceof DirectoryInput) {
+                format = Format.DIRECTORY;
+            } else if (input instanceof JarInput) {
+                format = Format.JAR;
+            } else {
+                throw new UnsupportedOperationException("Unknown format readAll input " + input);
+            }
+            File f = outputProvider.getContentLocation(input.getName(), input.getContentTypes(),
+                    input.getScopes(), format);
+            if (!f.getParentFile().exists()) f.getParentFile().mkdirs();
+            return f.toPath();
+        };
+    }
+
+    private File symbolListOf(TransformInvocation invocation) {
+        // path of task is like ':app:transformClassesWithInlineRForRelease'
+        String path = invocation.getContext().getPath();
+        String infix = "With" + capitalize(getName()) + "For";
+        int i = path.lastIndexOf(infix);
+        return i < 0 ? null : symbolLists.get(path.substring(i + infix.length()));
+    }
+
+    static String capitalize(String name) {
+        return name.isEmpty() ? name : Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+}
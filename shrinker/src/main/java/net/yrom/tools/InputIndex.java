@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.TransformInput;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Files of directory inputs with their size, modified time and kind, scanned once and shared
+ * by collecting symbols and transforming classes. Each directory is scanned on first use.
+ *
+ * @author yrom
+ */
+final class InputIndex {
+    enum Kind {
+        CLASS, R_CLASS, OTHER
+    }
+
+    private static final PathMatcher CASE_R_FILE =
+            FileSystems.getDefault().getPathMatcher("regex:^R\\.class|R\\$[a-z]+\\.class$");
+
+    private final List<File> roots;
+    private final Map<File, List<Entry>> files = new ConcurrentHashMap<>();
+
+    private InputIndex(List<File> roots) {
+        this.roots = roots;
+    }
+
+    /**
+     * @param inputs directories which don't exist (removed) are skipped
+     */
+    static InputIndex of(Collection<TransformInput> inputs) {
+        return new InputIndex(inputs.stream()
+                .map(TransformInput::getDirectoryInputs)
+                .flatMap(Collection::stream)
+                .map(DirectoryInput::getFile)
+                .filter(File::isDirectory)
+                .collect(Collectors.toList()));
+    }
+
+    static Kind kindOf(Path file) {
+        if (CASE_R_FILE.matches(file.getFileName())) {
+            return Kind.R_CLASS;
+        }
+        return file.getFileName().toString().endsWith(".class") ? Kind.CLASS : Kind.OTHER;
+    }
+
+    /**
+     * @return regular files of all directories, scanned in parallel if not yet
+     */
+    List<Entry> all() {
+        List<File> pending = roots.stream()
+                .filter(root -> !files.containsKey(root))
+                .collect(Collectors.toList());
+        if (!pending.isEmpty()) {
+            scan(pending);
+        }
+        List<Entry> all = new ArrayList<>();
+        for (File root : roots) {
+            all.addAll(filesOf(root));
+        }
+        return all;
+    }
+
+    /**
+     * @return regular files under the root, sorted by path
+     */
+    List<Entry> filesOf(File root) {
+        List<Entry> entries = files.get(root);
+        if (entries == null) {
+            scan(Collections.singletonList(root));
+            entries = files.get(root);
+        }
+        return entries;
+    }
+
+    /**
+     * Split roots by their children, so that one large directory is scanned by threads too.
+     */
+    private void scan(List<File> roots) {
+        List<Map.Entry<File, Path>> children = new ArrayList<>();
+        for (File root : roots) {
+            try (DirectoryStream<Path> dir = Files.newDirectoryStream(root.toPath())) {
+                for (Path child : dir) {
+                    children.add(new SimpleImmutableEntry<>(root, child));
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        List<Map.Entry<File, List<Entry>>> scanned = children.parallelStream()
+                .map(child -> new SimpleImmutableEntry<>(child.getKey(), walk(child.getValue())))
+                .collect(Collectors.toList());
+        Map<File, List<Entry>> grouped = new HashMap<>();
+        for (File root : roots) {
+            grouped.put(root, new ArrayList<>());
+        }
+        for (Map.Entry<File, List<Entry>> child : scanned) {
+            grouped.get(child.getKey()).addAll(child.getValue());
+        }
+        grouped.forEach((root, entries) -> {
+            entries.sort(Comparator.comparing(entry -> entry.file));
+            files.put(root, Collections.unmodifiableList(entries));
+        });
+    }
+
+    private static List<Entry> walk(Path start) {
+        List<Entry> entries = new ArrayList<>();
+        try {
+            if (!Files.isDirectory(start, LinkOption.NOFOLLOW_LINKS)) {
+                BasicFileAttributes attrs = Files.readAttributes(start, BasicFileAttributes.class);
+                if (attrs.isRegularFile()) {
+                    entries.add(new Entry(start, attrs));
+                }
+                return entries;
+            }
+            Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile()) {
+                        entries.add(new Entry(file, attrs));
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return entries;
+    }
+
+    static final class Entry implements Serializable {
+        private static final long serialVersionUID = 2L;
+
+        final File file;
+        final long size;
+        final Kind kind;
+
+        Entry(Path file, BasicFileAttributes attrs) {
+            this.file = file.toFile();
+            this.size = attrs.size();
+            this.kind = kindOf(file);
+        }
+    }
+}
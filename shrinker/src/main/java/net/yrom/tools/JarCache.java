@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+import static net.yrom.tools.ShrinkerPlugin.logger;
+
+/**
+ * Content addressed store of transformed jars, shared by variants and builds.
+ * A jar is keyed by the hash of its bytes, the fingerprint of symbols it was inlined with
+ * and the compression of its transformed entries.
+ *
+ * @author yrom
+ */
+final class JarCache implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final File dir;
+    private final String symbolsFingerprint;
+    private final int compression;
+
+    /**
+     * @param dir null to disable the cache
+     */
+    JarCache(File dir, String symbolsFingerprint, int compression) {
+        this.dir = dir;
+        this.symbolsFingerprint = symbolsFingerprint;
+        this.compression = compression;
+    }
+
+    boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * Link or copy the cached output of src to dst, or proceed it and cache a copy of the output.
+     * Entries are never modified once put, outputs may be hard links of them.
+     */
+    void proceed(Path src, Path dst, Processor processor) {
+        Path entry;
+        try {
+            entry = entryOf(src);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            if (Files.isRegularFile(entry)) {
+                Files.deleteIfExists(dst);
+                FileCopier.linkOrCopy(entry, dst);
+                logger.debug("Reuse cached {} for {}", entry, src);
+                return;
+            }
+            if (Files.exists(noOutputOf(entry))) {
+                Files.deleteIfExists(dst);
+                logger.debug("Reuse cached {} for {}, no output", entry, src);
+                return;
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to reuse cached " + entry + " for " + src, e);
+        }
+        processor.proceed();
+        try {
+            if (Files.exists(dst)) {
+                put(entry, dst);
+            } else {
+                Files.createDirectories(entry.getParent());
+                Files.createFile(noOutputOf(entry));
+            }
+        } catch (FileAlreadyExistsException ignored) {
+            // put by others
+        } catch (IOException e) {
+            // not fatal, just proceed it again next time
+            logger.warn("Failed to cache " + dst, e);
+        }
+    }
+
+    private Path entryOf(Path src) throws IOException {
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putInt(InlineRTransform.OUTPUT_VERSION)
+                .putUnencodedChars(symbolsFingerprint)
+                .putInt(compression);
+        try (InputStream in = Files.newInputStream(src);
+             OutputStream out = Funnels.asOutputStream(hasher)) {
+            ByteStreams.copy(in, out);
+        }
+        String key = hasher.hash().toString();
+        return dir.toPath().resolve(key.substring(0, 2)).resolve(key + ".jar");
+    }
+
+    /**
+     * @return marker of the entry whose jar has no output, e.g. no class in it
+     */
+    private static Path noOutputOf(Path entry) {
+        return entry.resolveSibling(entry.getFileName() + ".none");
+    }
+
+    /**
+     * Publish a copy of output to the cache atomically, other processes may be putting the same entry.
+     * It's not linked, output may be a copy of an input which is rewritten in place later.
+     */
+    private static void put(Path entry, Path output) throws IOException {
+        Files.createDirectories(entry.getParent());
+        Path tmp = entry.resolveSibling(entry.getFileName() + "." + UUID.randomUUID() + ".tmp");
+        try {
+            FileCopier.copy(output, tmp);
+            Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (FileAlreadyExistsException ignored) {
+            // put by others
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -16,145 +16,316 @@
 
 package net.yrom.tools;
 
-import com.google.common.collect.ImmutableList;
-
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.io.output.ByteArrayOutputStream;
 
 import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Function;
-import java.util.stream.Collectors;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 
 /**
+ * Streams class entries of a jar through the transform batch by batch,
+ * so that only a bounded part of the jar is held in memory.
+ * Entries that the transform leaves unchanged are copied as raw compressed bytes.
+ * Only classes and directories are kept, other resources are stripped whether the jar is transformed or not,
+ * so are R classes which symbols are read from, like those of a directory, see {@link RSymbols#isConstantRClass}.
+ * The whole jar is linked or copied only if nothing is stripped and none of its classes refers to R.
+ * Changed entries are STORED, or deflated in worker threads before they are written in order.
+ *
  * @author yrom
  * @version 2017/11/29
  */
 class JarProcessor extends ClassesProcessor {
+    private static final long MAX_BATCH_SIZE = 4 * 1024 * 1024;
+    /**
+     * Compression level of changed entries which are written without compression.
+     */
+    static final int STORED = -1;
+    private final MemoryBudget budget;
+    private final JarScanner scanner;
+    private final int compression;
+    private final boolean immutable;
 
-    JarProcessor(Function<byte[], byte[]> classTransform, Path src, Path dst) {
+    /**
+     * @param compression {@link #STORED} or a deflate level of changed entries
+     * @param immutable   true if src is never modified in place, so dst may be a hard link of it
+     */
+    JarProcessor(Function<byte[], byte[]> classTransform, Path src, Path dst,
+                 MemoryBudget budget, JarScanner scanner, int compression, boolean immutable) {
         super(classTransform, src, dst);
+        this.budget = budget;
+        this.scanner = scanner;
+        this.compression = compression;
+        this.immutable = immutable;
     }
 
     @Override
     public void proceed() {
-        try {
-            List<Pair<String, byte[]>> entryList = readZipEntries(src)
-                    .parallelStream()
-                    .map(this::transformClassBlob)
-                    .collect(Collectors.toList());
-            if (entryList.isEmpty()) return;
-            try (OutputStream fileOut = Files.newOutputStream(dst)) {
-                ByteArrayOutputStream buffer = zipEntries(entryList);
-                buffer.writeTo(fileOut);
+        try (ZipFile zip = new ZipFile(src.toFile())) {
+            // classes and directories, in order of the jar
+            List<ZipArchiveEntry> entries = new ArrayList<>();
+            List<ZipArchiveEntry> rClasses = new ArrayList<>();
+            int classes = 0;
+            boolean stripped = false;
+            for (ZipArchiveEntry entry : Collections.list(zip.getEntriesInPhysicalOrder())) {
+                if (isClassEntry(entry)) {
+                    entries.add(entry);
+                    classes++;
+                    if (isRClassEntry(entry)) {
+                        rClasses.add(entry);
+                    }
+                } else if (entry.isDirectory()) {
+                    entries.add(entry);
+                } else {
+                    stripped = true;
+                }
+            }
+            if (isConstantRJar(zip, rClasses)) {
+                entries.removeAll(rClasses);
+                classes -= rClasses.size();
+                stripped = true;
+            }
+            // may be left by previous build, it could also be a hard link to the source
+            Files.deleteIfExists(dst);
+            if (classes == 0) {
+                return;
+            }
+            boolean visitR = scanner.attemptToVisitR(src);
+            if (!visitR && !stripped) {
+                log.debug("no class refers to R in {}, copy it", src);
+                if (immutable) {
+                    FileCopier.linkOrCopy(src, dst);
+                } else {
+                    FileCopier.copy(src, dst);
+                }
+                return;
+            }
+            try (ZipArchiveOutputStream jar = new ZipArchiveOutputStream(
+                    FileChannel.open(dst, CREATE, TRUNCATE_EXISTING, WRITE));
+                 Deflaters deflaters = new Deflaters(compression)) {
+                jar.setMethod(compression == STORED ? ZipEntry.STORED : ZipEntry.DEFLATED);
+                if (!visitR) {
+                    log.debug("no class refers to R in {}, strip the rest", src);
+                    for (ZipArchiveEntry entry : entries) {
+                        copyRawEntry(zip, entry, jar);
+                    }
+                    return;
+                }
+                long batchLimit = Math.min(MAX_BATCH_SIZE, budget.bytes());
+                List<ZipArchiveEntry> batch = new ArrayList<>();
+                long batchSize = 0;
+                for (ZipArchiveEntry entry : entries) {
+                    long entrySize = entry.getSize();
+                    if (entrySize >= Integer.MAX_VALUE) {
+                        throw new OutOfMemoryError("Too large class file " + entry.getName() + ", size is " + entrySize);
+                    }
+                    if (!batch.isEmpty() && batchSize + entrySize > batchLimit) {
+                        proceedBatch(zip, batch, batchSize, jar, deflaters);
+                        batch.clear();
+                        batchSize = 0;
+                    }
+                    batch.add(entry);
+                    batchSize += Math.max(entrySize, 0);
+                }
+                if (!batch.isEmpty()) {
+                    proceedBatch(zip, batch, batchSize, jar, deflaters);
+                }
             }
         } catch (IOException e) {
             throw new RuntimeException("Reading jar entries failure", e);
         }
     }
 
-    private ByteArrayOutputStream zipEntries(List<Pair<String, byte[]>> entryList) throws IOException {
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
-        try (ZipOutputStream jar = new ZipOutputStream(buffer)) {
-            jar.setMethod(ZipOutputStream.STORED);
-            final CRC32 crc = new CRC32();
-            for (Pair<String, byte[]> entry : entryList) {
-                byte[] bytes = entry.second;
-                final ZipEntry newEntry = new ZipEntry(entry.first);
-                newEntry.setMethod(ZipEntry.STORED); // chose STORED method
-                crc.reset();
-                crc.update(entry.second);
-                newEntry.setCrc(crc.getValue());
-                newEntry.setSize(bytes.length);
-                writeEntryToJar(newEntry, bytes, jar);
+    static boolean isClassEntry(ZipArchiveEntry entry) {
+        return !entry.isDirectory() && entry.getName().endsWith(".class");
+    }
+
+    private static boolean isRClassEntry(ZipArchiveEntry entry) {
+        return InputIndex.kindOf(Paths.get(entry.getName())) == InputIndex.Kind.R_CLASS;
+    }
+
+    /**
+     * R classes of a jar are compiled together, like 'R.jar' of the app, or non-final ones of a library,
+     * so the first 'R$*.class' tells the rest.
+     */
+    private static boolean isConstantRJar(ZipFile zip, List<ZipArchiveEntry> rClasses) {
+        for (ZipArchiveEntry entry : rClasses) {
+            String name = entry.getName();
+            if (name.startsWith("R$", name.lastIndexOf('/') + 1)) {
+                return RSymbols.isConstantRClass(readEntry(zip, entry));
             }
-            jar.flush();
         }
-        return buffer;
+        return false;
     }
 
-    private Pair<String, byte[]> transformClassBlob(Pair<String, byte[]> entry) {
-        byte[] bytes = entry.second;
-        entry.second = classTransform.apply(bytes);
-        return entry;
+    /**
+     * Proceed the batch as a whole if the budget allows, otherwise entry by entry.
+     */
+    private void proceedBatch(ZipFile zip, List<ZipArchiveEntry> batch, long batchSize,
+                              ZipArchiveOutputStream jar, Deflaters deflaters) throws IOException {
+        int granted = budget.tryAcquire(batchSize);
+        if (granted == 0) {
+            for (ZipArchiveEntry entry : batch) {
+                proceedEntries(zip, Collections.singletonList(entry), jar, deflaters);
+            }
+            return;
+        }
+        try {
+            proceedEntries(zip, batch, jar, deflaters);
+        } finally {
+            budget.release(granted);
+        }
     }
 
-    private List<Pair<String, byte[]>> readZipEntries(Path src) throws IOException {
-        ImmutableList.Builder<Pair<String, byte[]>> list = ImmutableList.builder();
-        try (ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(Files.readAllBytes(src)))) {
-            for (ZipEntry entry = zip.getNextEntry();
-                 entry != null;
-                 entry = zip.getNextEntry()) {
-                String name = entry.getName();
-                if (!name.endsWith(".class")) {
-                    // skip
-                    continue;
-                }
-                long entrySize = entry.getSize();
-                if (entrySize >= Integer.MAX_VALUE) {
-                    throw new OutOfMemoryError("Too large class file " + name + ", size is " + entrySize);
-                }
-                byte[] bytes = readByteArray(zip, (int) entrySize);
-                list.add(Pair.of(name, bytes));
+    /**
+     * Read, transform and deflate entries in parallel, then write them in order.
+     */
+    private void proceedEntries(ZipFile zip, List<ZipArchiveEntry> batch,
+                                ZipArchiveOutputStream jar, Deflaters deflaters) throws IOException {
+        // null if the entry is not changed by transform
+        final byte[][] transformed = new byte[batch.size()][];
+        final long[] crcs = new long[batch.size()];
+        // null if the entry is STORED
+        final byte[][] deflated = new byte[batch.size()][];
+        CostModel.forEachIndex(batch.size(), i -> batch.get(i).getSize(), i -> {
+            if (!isClassEntry(batch.get(i))) {
+                return;
+            }
+            byte[] origin = readEntry(zip, batch.get(i));
+            byte[] bytes = classTransform.apply(origin);
+            if (bytes == origin) {
+                return;
+            }
+            transformed[i] = bytes;
+            CRC32 crc = new CRC32();
+            crc.update(bytes);
+            crcs[i] = crc.getValue();
+            if (compression != STORED) {
+                deflated[i] = deflaters.deflate(bytes);
             }
+        });
+        for (int i = 0; i < transformed.length; i++) {
+            ZipArchiveEntry entry = batch.get(i);
+            byte[] bytes = transformed[i];
+            if (bytes == null) {
+                copyRawEntry(zip, entry, jar);
+                continue;
+            }
+            final ZipArchiveEntry newEntry = new ZipArchiveEntry(entry.getName());
+            newEntry.setCrc(crcs[i]);
+            newEntry.setSize(bytes.length);
+            // keep the entry STORED if deflating doesn't make it smaller
+            byte[] data = deflated[i] != null && deflated[i].length < bytes.length ? deflated[i] : bytes;
+            newEntry.setMethod(data == bytes ? ZipEntry.STORED : ZipEntry.DEFLATED);
+            newEntry.setCompressedSize(data.length);
+            jar.addRawArchiveEntry(newEntry, new ByteArrayInputStream(data));
         }
-        return list.build();
     }
 
-    private byte[] readByteArray(ZipInputStream zip, int expected) throws IOException {
-        if (expected == -1) { // unknown size
-            return IOUtils.toByteArray(zip);
+    /**
+     * Deflaters of a jar, reused by worker threads and released with their native memory once the jar is written.
+     */
+    private static final class Deflaters implements Closeable {
+        private final Queue<Deflater> idle = new ConcurrentLinkedQueue<>();
+        private final Queue<Deflater> all = new ConcurrentLinkedQueue<>();
+        private final int level;
+
+        Deflaters(int level) {
+            this.level = level;
         }
-        final byte[] bytes = new byte[expected];
-        int read = 0;
-        do {
-            int n = zip.read(bytes, read, expected - read);
-            if (n <= 0) {
-                break;
+
+        /**
+         * @return raw deflate data of bytes, as it is stored in a zip entry
+         */
+        byte[] deflate(byte[] bytes) {
+            Deflater deflater = idle.poll();
+            if (deflater == null) {
+                deflater = new Deflater(level, true);
+                all.add(deflater);
             }
-            read += n;
-        } while (read < expected);
+            try {
+                deflater.setInput(bytes);
+                deflater.finish();
+                byte[] out = new byte[Math.max(64, bytes.length / 2)];
+                int length = 0;
+                while (!deflater.finished()) {
+                    if (length == out.length) {
+                        out = Arrays.copyOf(out, out.length * 2);
+                    }
+                    length += deflater.deflate(out, length, out.length - length);
+                }
+                return length == out.length ? out : Arrays.copyOf(out, length);
+            } finally {
+                deflater.reset();
+                idle.add(deflater);
+            }
+        }
 
-        if (expected != bytes.length) {
-            throw new EOFException("unexpected EOF");
+        @Override
+        public void close() {
+            all.forEach(Deflater::end);
         }
-        return bytes;
     }
 
+    /**
+     * Copy compressed data with its crc and sizes, no need to inflate again.
+     */
+    private static void copyRawEntry(ZipFile zip, ZipArchiveEntry entry, ZipArchiveOutputStream jar)
+            throws IOException {
+        try (InputStream raw = zip.getRawInputStream(entry)) {
+            jar.addRawArchiveEntry(entry, raw);
+        }
+    }
 
-    private static void writeEntryToJar(ZipEntry entry, byte[] bytes, ZipOutputStream jar) {
-        try {
-            jar.putNextEntry(entry);
-            jar.write(bytes);
-            jar.closeEntry();
+    static byte[] readEntry(ZipFile zip, ZipArchiveEntry entry) {
+        try (InputStream in = zip.getInputStream(entry)) {
+            return readByteArray(in, (int) entry.getSize());
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
     }
 
-    // mutable pair
-    static class Pair<F, S> {
-        F first;
-        S second;
-
-        Pair(F first, S second) {
-            this.first = first;
-            this.second = second;
+    private static byte[] readByteArray(InputStream in, int expected) throws IOException {
+        if (expected == -1) { // unknown size
+            return IOUtils.toByteArray(in);
         }
+        final byte[] bytes = new byte[expected];
+        int read = 0;
+        do {
+            int n = in.read(bytes, read, expected - read);
+            if (n <= 0) {
+                break;
+            }
+            read += n;
+        } while (read < expected);
 
-        static <F, S> Pair<F, S> of(F first, S second) {
-            return new Pair<>(first, second);
+        if (read != expected) {
+            throw new EOFException("unexpected EOF");
         }
+        return bytes;
     }
 }
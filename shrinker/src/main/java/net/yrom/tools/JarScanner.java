@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+/**
+ * Pre-scans jars with {@link ConstantPoolScanner} to tell whether any of their classes refers to R.
+ * Scanning needs no symbols, so it can be started by {@link #prefetch(Path)} while the symbols
+ * are still being collected, and then consumed by {@link JarProcessor}.
+ * Those never consumed should be {@link #cancel() cancelled}, not to keep running after the transform.
+ *
+ * @author yrom
+ */
+final class JarScanner {
+    private final ConcurrentMap<Path, CompletableFuture<Boolean>> results = new ConcurrentHashMap<>();
+    private final Executor executor;
+
+    JarScanner(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Start scanning the jar in background.
+     */
+    void prefetch(Path jar) {
+        results.computeIfAbsent(jar, j -> {
+            CompletableFuture<Boolean> result = new CompletableFuture<>();
+            executor.execute(() -> {
+                if (result.isDone()) {
+                    // cancelled before started
+                    return;
+                }
+                try {
+                    result.complete(scan(j, result::isCancelled));
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+            return result;
+        });
+    }
+
+    /**
+     * @return true if any class of the jar may refer to R, waits for the prefetched result if any
+     */
+    boolean attemptToVisitR(Path jar) {
+        CompletableFuture<Boolean> result = results.remove(jar);
+        return result != null ? result.join() : scan(jar, () -> false);
+    }
+
+    /**
+     * Stop scanning prefetched jars which are not consumed yet, later scans are not affected.
+     */
+    void cancel() {
+        results.values().removeIf(result -> {
+            result.cancel(false);
+            return true;
+        });
+    }
+
+    /**
+     * @param cancelled checked between entries
+     */
+    private boolean scan(Path jar, BooleanSupplier cancelled) {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            List<ZipArchiveEntry> entries = Collections.list(zip.getEntriesInPhysicalOrder())
+                    .stream()
+                    .filter(JarProcessor::isClassEntry)
+                    .collect(Collectors.toList());
+            List<List<ZipArchiveEntry>> batches = CostModel.split(entries, ZipArchiveEntry::getSize);
+            return (batches.size() == 1 ? batches.stream() : batches.parallelStream())
+                    .anyMatch(batch -> batch.stream().anyMatch(entry -> {
+                        if (cancelled.getAsBoolean()) {
+                            throw new CancellationException("Scanning " + jar + " is cancelled");
+                        }
+                        return ConstantPoolScanner.attemptToVisitR(JarProcessor.readEntry(zip, entry));
+                    }));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits how many bytes of class files can be held in memory at the same time,
+ * shared by all {@link JarProcessor}s of a transform. Those out of budget hold one entry at a time.
+ *
+ * @author yrom
+ */
+final class MemoryBudget {
+    private static final int UNIT = 1024;
+    private final Semaphore permits;
+    private final int total;
+
+    private MemoryBudget(int kilobytes) {
+        this.total = kilobytes;
+        this.permits = new Semaphore(kilobytes);
+    }
+
+    static MemoryBudget ofMegabytes(int megabytes) {
+        if (megabytes <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive, but was " + megabytes + "MB");
+        }
+        return new MemoryBudget(megabytes * UNIT);
+    }
+
+    long bytes() {
+        return (long) total * UNIT;
+    }
+
+    /**
+     * Never blocks, a worker of a pool may be holding permits in its callers while it helps
+     * run other tasks, waiting there could wait for itself.
+     * A request larger than the whole budget asks for the whole budget.
+     *
+     * @return the granted permits, must be passed to {@link #release(int)}, or 0 if not available
+     */
+    int tryAcquire(long bytes) {
+        int kilobytes = (int) Math.min(total, Math.max(1, (bytes + UNIT - 1) / UNIT));
+        return permits.tryAcquire(kilobytes) ? kilobytes : 0;
+    }
+
+    void release(int granted) {
+        permits.release(granted);
+    }
+}
@@ -16,114 +16,402 @@
 
 package net.yrom.tools;
 
-import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.JarInput;
+import com.android.build.api.transform.QualifiedContent;
 import com.android.build.api.transform.TransformInput;
-import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 
+import org.apache.commons.io.IOUtils;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UncheckedIOException;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
+import static net.yrom.tools.ShrinkerPlugin.logger;
+import static org.objectweb.asm.ClassReader.SKIP_CODE;
 import static org.objectweb.asm.ClassReader.SKIP_DEBUG;
 import static org.objectweb.asm.ClassReader.SKIP_FRAMES;
 
 /**
  * @author yrom
  */
-class RSymbols {
+final class RSymbols {
     /**
      * default package!
      */
     static final String R_STYLEABLES_CLASS_NAME = "R$styleable";
+    /**
+     * 'RSY' and format version, leading bytes of the symbols cache file
+     */
+    private static final int CACHE_MAGIC = 0x52535902;
 
-    private Map<String, Integer> symbols = Collections.emptyMap();
-    private Map<String, int[]> styleables = Maps.newHashMap();
+    private final SymbolIndex index;
+    /**
+     * sorted names of styleables, values of the i-th are
+     * {@code styleableSlab[styleableStart[i]...styleableStart[i + 1])}
+     */
+    private final String[] styleableNames;
+    private final int[] styleableStart;
+    private final int[] styleableSlab;
 
-    public Integer get(String key) {
-        return symbols.get(key);
+    /**
+     * Build the immutable table, the builder is no longer referenced after that.
+     */
+    private RSymbols(Builder builder) {
+        Map<String, Integer> symbols = builder.symbols;
+        Map<String, int[]> styleables = builder.styleables;
+        this.index = new SymbolIndex(symbols);
+        this.styleableNames = styleables.keySet().toArray(new String[0]);
+        Arrays.sort(styleableNames);
+        this.styleableStart = new int[styleableNames.length + 1];
+        int total = 0;
+        for (int i = 0; i < styleableNames.length; i++) {
+            styleableStart[i] = total;
+            total += styleables.get(styleableNames[i]).length;
+        }
+        styleableStart[styleableNames.length] = total;
+        this.styleableSlab = new int[total];
+        for (int i = 0; i < styleableNames.length; i++) {
+            int[] values = styleables.get(styleableNames[i]);
+            System.arraycopy(values, 0, styleableSlab, styleableStart[i], values.length);
+        }
     }
 
-    public boolean containsKey(String key) {
-        return symbols.containsKey(key);
+    /**
+     * @see SymbolIndex#indexOf(String, String)
+     */
+    public int indexOf(String owner, String name) {
+        return index.indexOf(owner, name);
+    }
+
+    public int valueAt(int index) {
+        return this.index.valueAt(index);
     }
 
     public boolean isEmpty() {
-        return symbols.isEmpty() && styleables.isEmpty();
-    }
-
-    public Map<String, int[]> getStyleables() {
-        return Collections.unmodifiableMap(styleables);
-    }
-
-    public RSymbols from(Collection<TransformInput> inputs) {
-        final PathMatcher rClassMatcher = FileSystems.getDefault().getPathMatcher("glob:R$*.class");
-        final List<Path> paths = inputs.stream()
-                .map(TransformInput::getDirectoryInputs)
-                .flatMap(Collection::stream)
-                .map(this::toStream)
-                .reduce(Stream.empty(), Stream::concat)
-                .collect(Collectors.toList());
-        Stream<Path> stream;
-        if (paths.size() >= Runtime.getRuntime().availableProcessors() * 3) {
-            // use parallel here!
-            stream = paths.parallelStream();
-            symbols = Maps.newConcurrentMap();
+        return index.size() == 0 && styleableNames.length == 0;
+    }
+
+    public int styleableCount() {
+        return styleableNames.length;
+    }
+
+    /**
+     * @return name of the i-th styleable, styleables are sorted by name
+     */
+    public String styleableName(int i) {
+        return styleableNames[i];
+    }
+
+    public int[] styleableValues(int i) {
+        return Arrays.copyOfRange(styleableSlab, styleableStart[i], styleableStart[i + 1]);
+    }
+
+    /**
+     * @return a digest of all symbols and styleables, the same table always yields the same value
+     */
+    public String fingerprint() {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (int i = 0; i < index.size(); i++) {
+            hasher.putUnencodedChars(index.typeAt(i))
+                    .putUnencodedChars(index.nameAt(i))
+                    .putInt(index.valueAt(i));
+        }
+        for (int i = 0; i < styleableNames.length; i++) {
+            hasher.putUnencodedChars(styleableNames[i])
+                    .putInt(styleableStart[i + 1] - styleableStart[i]);
+            for (int j = styleableStart[i]; j < styleableStart[i + 1]; j++) {
+                hasher.putInt(styleableSlab[j]);
+            }
+        }
+        return hasher.hash().toString();
+    }
+
+    public static RSymbols from(Collection<TransformInput> inputs) {
+        return from(inputs, null, null);
+    }
+
+    /**
+     * @param symbolList text symbol table (R.txt) of the app, symbols are read from it if exists,
+     *                   otherwise decompiled from R classes of directory inputs and R.jar like
+     *                   jar inputs, see {@link #isRJarCandidate(JarInput)}.
+     * @param cache      binary file which persists the symbol table across builds, it will be loaded
+     *                   instead of parsing symbols if its key matches the hash of the sources.
+     *                   {@code null} to disable caching
+     */
+    public static RSymbols from(Collection<TransformInput> inputs, Path symbolList, Path cache) {
+        return from(inputs, InputIndex.of(inputs), symbolList, cache);
+    }
+
+    /**
+     * @param index files of the directory inputs, scanned only if there is no symbol list
+     */
+    static RSymbols from(Collection<TransformInput> inputs, InputIndex index, Path symbolList, Path cache) {
+        final boolean fromSymbolList = symbolList != null && Files.isRegularFile(symbolList);
+        final List<Path> sources;
+        final List<Path> jars;
+        if (fromSymbolList) {
+            sources = Collections.singletonList(symbolList);
+            jars = Collections.emptyList();
         } else {
-            stream = paths.stream();
-            symbols = Maps.newHashMap();
+            sources = index.all().stream()
+                    .filter(entry -> entry.kind == InputIndex.Kind.R_CLASS
+                            && entry.file.getName().startsWith("R$"))
+                    .map(entry -> entry.file.toPath())
+                    .sorted()
+                    .collect(Collectors.toList());
+            jars = inputs.stream()
+                    .map(TransformInput::getJarInputs)
+                    .flatMap(Collection::stream)
+                    .filter(RSymbols::isRJarCandidate)
+                    .map(jar -> jar.getFile().toPath())
+                    .sorted()
+                    .collect(Collectors.toList());
         }
-        stream.filter(path -> rClassMatcher.matches(path.getFileName()))
-                .forEach(this::drainSymbols);
-        return this;
+        HashCode key = null;
+        if (cache != null) {
+            key = hashOf(sources, jars);
+            RSymbols cached = readFrom(cache, key);
+            if (cached != null) {
+                logger.info("Loaded {} symbols from {}", cached.index.size(), cache);
+                return cached;
+            }
+        }
+        Builder builder;
+        if (fromSymbolList) {
+            builder = new Builder();
+            try {
+                SymbolListReader.read(symbolList, builder);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        } else {
+            logger.info("No symbol list, read symbols from R classes");
+            // a jar is drained as a whole, alongside the R class files
+            List<Path> files = new ArrayList<>(sources.size() + jars.size());
+            files.addAll(sources);
+            files.addAll(jars);
+            Set<Path> jarSet = new HashSet<>(jars);
+            List<List<Path>> batches = CostModel.split(files, file -> file.toFile().length());
+            Stream<List<Path>> stream = batches.size() == 1 ? batches.stream() : batches.parallelStream();
+            // each thread drains into its own builder, then they are merged in order of batches
+            builder = stream.collect(Builder::new, (b, batch) -> {
+                for (Path file : batch) {
+                    if (jarSet.contains(file)) {
+                        drainJar(b, file);
+                    } else {
+                        drainSymbols(b, file);
+                    }
+                }
+            }, Builder::merge);
+        }
+        RSymbols rSymbols = builder.build();
+        if (cache != null) {
+            rSymbols.writeTo(cache, key);
+        }
+        return rSymbols;
     }
 
-    private void drainSymbols(Path file) {
-        final String filename = file.getFileName().toString();
-        String typeName = filename.substring(0, filename.length() - ".class".length());
-        byte[] bytes;
+    /**
+     * Decompile symbols from R class files like 'R$id.class', without caching them.
+     */
+    static RSymbols fromRClasses(List<Path> classes) {
+        Builder builder = new Builder();
+        for (Path file : classes) {
+            drainSymbols(builder, file);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Newer android gradle plugin compiles R classes of the app to 'R.jar',
+     * external libraries are skipped since their R classes are never final.
+     */
+    private static boolean isRJarCandidate(JarInput jar) {
+        return !jar.getScopes().contains(QualifiedContent.Scope.EXTERNAL_LIBRARIES)
+                && jar.getFile().isFile();
+    }
+
+    private static boolean isRClassEntry(ZipEntry entry) {
+        String name = entry.getName();
+        int slash = name.lastIndexOf('/');
+        return name.startsWith("R$", slash + 1) && name.endsWith(".class");
+    }
+
+    /**
+     * @param jars only R class entries are hashed, by their CRC in the central directory
+     */
+    private static HashCode hashOf(List<Path> sources, List<Path> jars) {
+        Hasher hasher = Hashing.murmur3_128().newHasher();
+        for (Path file : sources) {
+            hasher.putUnencodedChars(file.getFileName().toString());
+            try {
+                hasher.putBytes(Files.readAllBytes(file));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        for (Path jar : jars) {
+            try (ZipFile zip = new ZipFile(jar.toFile())) {
+                zip.stream().filter(RSymbols::isRClassEntry).forEach(entry ->
+                        hasher.putUnencodedChars(entry.getName()).putLong(entry.getCrc()).putLong(entry.getSize()));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return hasher.hash();
+    }
+
+    /**
+     * Load symbols written by {@link #from(Collection, Path, Path)} to the cache, whatever sources they came from.
+     *
+     * @return null if the cache is absent or broken
+     */
+    static RSymbols readFrom(Path cache) {
+        return readFrom(cache, null);
+    }
+
+    /**
+     * @param key null to accept any
+     * @return null if the cache is absent, broken or keyed by different sources
+     */
+    private static RSymbols readFrom(Path cache, HashCode key) {
+        if (Files.notExists(cache)) return null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(cache)))) {
+            if (in.readInt() != CACHE_MAGIC) return null;
+            byte[] cachedKey = new byte[Hashing.murmur3_128().bits() / 8];
+            in.readFully(cachedKey);
+            if (key != null && !Arrays.equals(cachedKey, key.asBytes())) return null;
+            Builder builder = new Builder();
+            int size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String type = in.readUTF();
+                builder.putSymbol(type + '.' + in.readUTF(), in.readInt());
+            }
+            size = in.readInt();
+            for (int i = 0; i < size; i++) {
+                String name = in.readUTF();
+                int[] values = new int[in.readInt()];
+                for (int j = 0; j < values.length; j++) {
+                    values[j] = in.readInt();
+                }
+                builder.putStyleable(name, values);
+            }
+            return builder.build();
+        } catch (IOException e) {
+            logger.warn("Ignore broken symbols cache " + cache, e);
+            return null;
+        }
+    }
+
+    private void writeTo(Path cache, HashCode key) {
+        Path tmp = cache.resolveSibling(cache.getFileName() + ".tmp");
         try {
-            bytes = Files.readAllBytes(file);
+            Files.createDirectories(cache.getParent());
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(CACHE_MAGIC);
+                out.write(key.asBytes());
+                out.writeInt(index.size());
+                for (int i = 0; i < index.size(); i++) {
+                    out.writeUTF(index.typeAt(i));
+                    out.writeUTF(index.nameAt(i));
+                    out.writeInt(index.valueAt(i));
+                }
+                out.writeInt(styleableNames.length);
+                for (int i = 0; i < styleableNames.length; i++) {
+                    out.writeUTF(styleableNames[i]);
+                    out.writeInt(styleableStart[i + 1] - styleableStart[i]);
+                    for (int j = styleableStart[i]; j < styleableStart[i + 1]; j++) {
+                        out.writeInt(styleableSlab[j]);
+                    }
+                }
+            }
+            Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            // not fatal, just parse symbols again next time
+            logger.warn("Failed to write symbols cache " + cache, e);
+        }
+    }
+
+    private static void drainJar(Builder builder, Path jar) {
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                if (isRClassEntry(entry)) {
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        String name = entry.getName();
+                        drainSymbols(builder, name.substring(name.lastIndexOf('/') + 1), IOUtils.toByteArray(in));
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void drainSymbols(Builder builder, Path file) {
+        try {
+            drainSymbols(builder, file.getFileName().toString(), Files.readAllBytes(file));
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
+    }
+
+    /**
+     * Symbols of an R class are drained only if its int fields are all constants, like R classes of the app.
+     * R classes of libraries are non-final, their fields are assigned in {@code <clinit>} with ids which
+     * the library was compiled with, they must not be mixed with the real ones.
+     *
+     * @param filename like 'R$id.class'
+     */
+    private static void drainSymbols(Builder builder, String filename, byte[] bytes) {
+        String typeName = filename.substring(0, filename.length() - ".class".length());
+        Builder local = new Builder();
+        boolean[] constant = {true};
         ClassVisitor visitor = new ClassVisitor(Opcodes.ASM5) {
             @Override
             public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
                 // read constant value
                 if (value instanceof Integer) {
-                    String key = typeName + '.' + name;
-                    Integer old = symbols.get(key);
-                    if (old != null && !old.equals(value)) {
-                        throw new IllegalStateException("Value of " + key + " mismatched! "
-                                + "Excepted 0x" + Integer.toHexString(old)
-                                + " but was 0x" + Integer.toHexString((Integer) value));
-                    } else {
-                        symbols.put(key, (Integer) value);
-                    }
+                    local.putSymbol(typeName + '.' + name, (Integer) value);
+                } else if ("I".equals(desc)) {
+                    constant[0] = false;
                 }
                 return null;
             }
 
             @Override
             public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
-                if (access == Opcodes.ACC_STATIC && "<clinit>".equals(name)) {
+                // fields are visited before methods
+                if (constant[0] && access == Opcodes.ACC_STATIC && "<clinit>".equals(name)) {
 
                     return new MethodVisitor(Opcodes.ASM5) {
                         int[] current = null;
@@ -132,8 +420,8 @@ class RSymbols {
                         @Override
                         public void visitIntInsn(int opcode, int operand) {
                             if (opcode == Opcodes.NEWARRAY && operand == Opcodes.T_INT) {
-                                current = new int[intStack.pop()];
-                            } else if (opcode == Opcodes.BIPUSH) {
+                                current = intStack.isEmpty() ? null : new int[intStack.pop()];
+                            } else if (opcode == Opcodes.BIPUSH || opcode == Opcodes.SIPUSH) {
                                 intStack.push(operand);
                             }
                         }
@@ -150,22 +438,27 @@ class RSymbols {
                             if (opcode >= Opcodes.ICONST_0 && opcode <= Opcodes.ICONST_5) {
                                 intStack.push(opcode - Opcodes.ICONST_0);
                             } else if (opcode == Opcodes.IASTORE) {
+                                if (current == null || intStack.size() < 2) {
+                                    // not an array literal, give up the field
+                                    current = null;
+                                    return;
+                                }
                                 int value = intStack.pop();
                                 int index = intStack.pop();
-                                current[index] = value;
+                                if (index >= 0 && index < current.length) {
+                                    current[index] = value;
+                                } else {
+                                    current = null;
+                                }
                             }
                         }
 
                         @Override
                         public void visitFieldInsn(int opcode, String owner, String name, String desc) {
                             if (opcode == Opcodes.PUTSTATIC) {
-                                int[] old = styleables.get(name);
-                                if (old != null && old.length != current.length && !Arrays.equals(old, current)) {
-                                    throw new IllegalStateException("Value of styleable." + name + " mismatched! "
-                                            + "Excepted " + Arrays.toString(old)
-                                            + " but was " + Arrays.toString(current));
-                                } else {
-                                    styleables.put(name, current);
+                                // not an array literal if anything else is assigned
+                                if (current != null && "[I".equals(desc)) {
+                                    local.putStyleable(name, current);
                                 }
                                 current = null;
                                 intStack.clear();
@@ -178,13 +471,71 @@ class RSymbols {
         };
 
         new ClassReader(bytes).accept(visitor, SKIP_DEBUG | SKIP_FRAMES);
+        if (constant[0]) {
+            builder.merge(local);
+        }
     }
 
-    private Stream<Path> toStream(DirectoryInput dir) {
-        try {
-            return Files.walk(dir.getFile().toPath()).filter(Files::isRegularFile);
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    /**
+     * @return true if int fields of the R class are all constants, so its symbols are
+     * drained by {@link #from(Collection, Path, Path)}
+     */
+    static boolean isConstantRClass(byte[] bytes) {
+        boolean[] constant = {true};
+        new ClassReader(bytes).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                if (value == null && "I".equals(desc)) {
+                    constant[0] = false;
+                }
+                return null;
+            }
+        }, SKIP_CODE | SKIP_DEBUG | SKIP_FRAMES);
+        return constant[0];
+    }
+
+    /**
+     * Mutable and not thread-safe, parallel collecting should use one builder per thread
+     * and {@link #merge(Builder)} them. Mismatched values are recorded rather than thrown,
+     * and reported sorted by {@link #build()}, so the result doesn't depend on thread scheduling.
+     */
+    static final class Builder {
+        private final Map<String, Integer> symbols = new HashMap<>();
+        private final Map<String, int[]> styleables = new HashMap<>();
+        private final Set<String> mismatches = new TreeSet<>();
+
+        /**
+         * @param key like 'R$id.title'
+         */
+        void putSymbol(String key, int value) {
+            Integer old = symbols.putIfAbsent(key, value);
+            if (old != null && old != value) {
+                mismatches.add("Value of " + key + " mismatched! "
+                        + "Excepted 0x" + Integer.toHexString(old)
+                        + " but was 0x" + Integer.toHexString(value));
+            }
+        }
+
+        void putStyleable(String name, int[] values) {
+            int[] old = styleables.putIfAbsent(name, values);
+            if (old != null && !Arrays.equals(old, values)) {
+                mismatches.add("Value of styleable." + name + " mismatched! "
+                        + "Excepted " + Arrays.toString(old)
+                        + " but was " + Arrays.toString(values));
+            }
+        }
+
+        void merge(Builder other) {
+            other.symbols.forEach(this::putSymbol);
+            other.styleables.forEach(this::putStyleable);
+            mismatches.addAll(other.mismatches);
+        }
+
+        RSymbols build() {
+            if (!mismatches.isEmpty()) {
+                throw new IllegalStateException(String.join("\n", mismatches));
+            }
+            return new RSymbols(this);
         }
     }
 }
@@ -18,7 +18,6 @@ package net.yrom.tools;
 
 import org.gradle.api.logging.LogLevel;
 import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
@@ -33,6 +32,8 @@ class ShrinkRClassVisitor extends ClassVisitor {
 
     private String classname;
     private final RSymbols rSymbols;
+    private final boolean redirectStyleables;
+    private boolean changed;
 
     /**
      * @return true if name matches pattern like {@code .+/R$.+}
@@ -43,9 +44,27 @@ class ShrinkRClassVisitor extends ClassVisitor {
         return $ > slash && $ < className.length() && (className.charAt(slash + 1) | className.charAt($ - 1)) == 'R';
     }
 
-    ShrinkRClassVisitor(ClassWriter cv, RSymbols rSymbols) {
-        super(Opcodes.ASM5, cv);
+    ShrinkRClassVisitor(ClassVisitor cv, RSymbols rSymbols) {
+        this(Opcodes.ASM5, cv, rSymbols, true);
+    }
+
+    /**
+     * @param api                ASM api version of the visitor chain, the one of the caller's ASM
+     *                           to visit attributes of newer class files
+     * @param redirectStyleables true to redirect {@code R$styleable} references to
+     *                           {@link RSymbols#R_STYLEABLES_CLASS_NAME}, which must be written along
+     */
+    ShrinkRClassVisitor(int api, ClassVisitor cv, RSymbols rSymbols, boolean redirectStyleables) {
+        super(api, cv);
         this.rSymbols = rSymbols;
+        this.redirectStyleables = redirectStyleables;
+    }
+
+    /**
+     * @return true if any R reference was inlined or removed
+     */
+    boolean isChanged() {
+        return changed;
     }
 
     @Override
@@ -65,6 +84,7 @@ class ShrinkRClassVisitor extends ClassVisitor {
         if (access == 0x19 /*ACC_PUBLIC | ACC_STATIC | ACC_FINAL*/
                 && isRClass(name)) {
             logger.debug("remove visit inner class {} in {}", name, classname);
+            changed = true;
             return;
         }
         cv.visitInnerClass(name, outerName, innerName, access);
@@ -73,7 +93,7 @@ class ShrinkRClassVisitor extends ClassVisitor {
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc,
                                      String signature, String[] exceptions) {
-        return new MethodVisitor(Opcodes.ASM5,
+        return new MethodVisitor(api,
                 super.visitMethod(access, name, desc, signature, exceptions)) {
 
             @Override
@@ -84,18 +104,17 @@ class ShrinkRClassVisitor extends ClassVisitor {
                     this.mv.visitFieldInsn(opcode, owner, fieldName, fieldDesc);
                     return;
                 }
-                String typeName = owner.substring(owner.lastIndexOf('/') + 1);
-                String key = typeName + '.' + fieldName;
-                if (rSymbols.containsKey(key)) {
-                    Integer value = rSymbols.get(key);
-                    if (value == null)
-                        throw new UnsupportedOperationException("value of " + key + " is null!");
+                int index = rSymbols.indexOf(owner, fieldName);
+                if (index >= 0) {
+                    int value = rSymbols.valueAt(index);
                     if (logger.isEnabled(LogLevel.DEBUG)) {
                         logger.debug("replace {}.{} to 0x{}", owner, fieldName, Integer.toHexString(value));
                     }
                     pushInt(this.mv, value);
-                } else if (owner.endsWith("/R$styleable")) { // replace all */R$styleable ref!
+                    changed = true;
+                } else if (redirectStyleables && owner.endsWith("/R$styleable")) { // replace all */R$styleable ref!
                     this.mv.visitFieldInsn(opcode, RSymbols.R_STYLEABLES_CLASS_NAME, fieldName, fieldDesc);
+                    changed = true;
                 } else {
                     this.mv.visitFieldInsn(opcode, owner, fieldName, fieldDesc);
                 }
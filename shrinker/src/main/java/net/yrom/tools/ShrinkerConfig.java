@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.gradle.workers.IsolationMode;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * Immutable snapshot of {@link ShrinkerExtension}, taken once the build script is evaluated,
+ * so the transform never reads the mutable extension while running.
+ *
+ * @author yrom
+ */
+final class ShrinkerConfig implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final boolean inlineR;
+    final int jarMemoryBudget;
+    final int parallelism;
+    /**
+     * null to proceed inputs in worker threads of the transform, otherwise by gradle workers
+     */
+    final IsolationMode workerIsolation;
+    /**
+     * null to disable the jar cache
+     */
+    final File jarCacheDir;
+    final int classCacheSize;
+    /**
+     * {@link JarProcessor#STORED} or a deflate level
+     */
+    final int jarCompression;
+
+    ShrinkerConfig(ShrinkerExtension extension) {
+        this.inlineR = extension.inlineR;
+        this.jarMemoryBudget = extension.jarMemoryBudget;
+        this.parallelism = extension.parallelism;
+        this.workerIsolation = isolationOf(extension.workerIsolation);
+        this.jarCacheDir = extension.jarCacheDir;
+        this.classCacheSize = extension.classCacheSize;
+        this.jarCompression = compressionOf(extension.jarCompression);
+    }
+
+    private static IsolationMode isolationOf(String workerIsolation) {
+        switch (workerIsolation.toLowerCase(Locale.ROOT)) {
+            case "off":
+            case "none":
+                // workers sharing the classloader gain nothing over threads of the transform
+                return null;
+            case "classloader":
+                return IsolationMode.CLASSLOADER;
+            default:
+                throw new IllegalArgumentException("Unsupported worker isolation '" + workerIsolation
+                        + "', expected one of 'none', 'classloader' or 'off'");
+        }
+    }
+
+    private static int compressionOf(String jarCompression) {
+        if (jarCompression != null) {
+            switch (jarCompression.toLowerCase(Locale.ROOT)) {
+                case "stored":
+                    return JarProcessor.STORED;
+                case "fast":
+                    return Deflater.BEST_SPEED;
+                case "best":
+                    return Deflater.BEST_COMPRESSION;
+                default:
+                    if (jarCompression.matches("[0-9]")) {
+                        return Integer.parseInt(jarCompression);
+                    }
+            }
+        }
+        throw new IllegalArgumentException("Unsupported jar compression '" + jarCompression
+                + "', expected one of 'stored', 'fast', 'best' or a level from 0 to 9");
+    }
+}
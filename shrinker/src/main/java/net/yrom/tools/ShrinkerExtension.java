@@ -15,9 +15,40 @@
  */
 package net.yrom.tools;
 
+import java.io.File;
+
 /**
  * @author yrom.
  */
 public class ShrinkerExtension {
     public boolean inlineR = true;
+    /**
+     * Max megabytes of class files held in memory while transforming jars.
+     */
+    public int jarMemoryBudget = 256;
+    /**
+     * Number of worker threads of the transform, 0 for the number of processors.
+     */
+    public int parallelism = 0;
+    /**
+     * Isolation of gradle workers which inputs are proceeded by, 'classloader' to submit each input
+     * as a gradle work item, proceeded by one thread, 'none' or 'off' to proceed them in worker threads
+     * of the transform, where large inputs are split across threads.
+     */
+    public String workerIsolation = "none";
+    /**
+     * Directory of transformed jars shared by variants and builds, null to disable it.
+     * Entries are never evicted, every change of R symbols adds a copy of each transformed jar,
+     * so clean it up from time to time if enabled, e.g. 'caches/shrinker/jars' in gradle user home.
+     */
+    public File jarCacheDir;
+    /**
+     * Max megabytes of transformed classes kept in memory of gradle daemon across builds, 0 to disable it.
+     */
+    public int classCacheSize = 0;
+    /**
+     * Compression of transformed entries in output jars, 'stored' to write them uncompressed,
+     * 'fast' or 'best' to deflate them, or a deflate level from 0 to 9.
+     */
+    public String jarCompression = "stored";
 }
\ No newline at end of file
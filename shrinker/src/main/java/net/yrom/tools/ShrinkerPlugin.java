@@ -18,12 +18,19 @@ package net.yrom.tools;
 
 import com.android.build.gradle.AppExtension;
 import com.android.build.gradle.AppPlugin;
+import com.google.common.base.Suppliers;
 
 import org.gradle.api.Plugin;
 import org.gradle.api.Project;
 import org.gradle.api.logging.Logger;
 import org.gradle.api.logging.Logging;
 
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * @author yrom.
  */
@@ -35,8 +42,61 @@ public class ShrinkerPlugin implements Plugin<Project> {
         if (!project.getPlugins().hasPlugin(AppPlugin.class)) {
             throw new UnsupportedOperationException("Plugin 'shrinker' can only apply with 'com.android.application'");
         }
-        AppExtension android = project.getExtensions().getByType(AppExtension.class);
         ShrinkerExtension config = project.getExtensions().create("shrinker", ShrinkerExtension.class);
-        android.registerTransform(new InlineRTransform(config));
+        if (hasInstrumentationApi() && registerInstrumentation(project, config)) {
+            return;
+        }
+        AppExtension android = project.getExtensions().getByType(AppExtension.class);
+        // R.txt of each variant, keyed by capitalized variant name
+        Map<String, File> symbolLists = new HashMap<>();
+        android.getApplicationVariants().all(variant -> symbolLists.put(
+                InlineRTransform.capitalize(variant.getName()),
+                new File(project.getBuildDir(), "intermediates/symbols/" + variant.getDirName() + "/R.txt")));
+        // read by the transform only after the build script has been evaluated
+        android.registerTransform(new InlineRTransform(Suppliers.memoize(() -> new ShrinkerConfig(config)), symbolLists));
+    }
+
+    /**
+     * @return true if android gradle plugin supports class instrumentation, since 7.2
+     */
+    private static boolean hasInstrumentationApi() {
+        try {
+            Class.forName("com.android.build.api.variant.Instrumentation", false,
+                    ShrinkerPlugin.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    /**
+     * InlineRInstrumentation is built separately by 'shrinker-instrumentation' against newer android gradle plugin,
+     * so call it by name if it's on the buildscript classpath, it calls back only public {@link InlineRSymbols}.
+     *
+     * @return false if it's absent
+     */
+    private static boolean registerInstrumentation(Project project, ShrinkerExtension config) {
+        Method register;
+        try {
+            register = Class.forName("net.yrom.tools.instrumentation.InlineRInstrumentation")
+                    .getDeclaredMethod("register", Project.class, ShrinkerExtension.class);
+        } catch (ClassNotFoundException e) {
+            logger.warn("Add 'net.yrom:shrinker-instrumentation' to the buildscript classpath "
+                    + "to inline R symbols by class instrumentation, fall back to the transform API");
+            return false;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("Mismatched version of 'shrinker-instrumentation'", e);
+        }
+        try {
+            register.setAccessible(true);
+            register.invoke(null, project, config);
+            return true;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IllegalStateException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
     }
 }
\ No newline at end of file
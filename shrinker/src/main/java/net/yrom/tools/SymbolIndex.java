@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Immutable table of {@code R$type.name -> int}, looked up by the owner of field
+ * instruction and field name directly, no string building nor boxing on the hot path.
+ * <p>
+ * Entries are sorted by key and stored column-wise: type names are interned in a small table,
+ * field names are packed in one {@code char[]} pool and values in an {@code int[]}.
+ * An open addressing table maps hash of key to the index of entry.
+ *
+ * @author yrom
+ */
+final class SymbolIndex {
+    private final String[] types;
+    private final short[] typeOf;
+    private final char[] namePool;
+    private final int[] nameStart;
+    private final int[] hashes;
+    private final int[] values;
+    /**
+     * index of entry + 1, 0 for empty slot
+     */
+    private final int[] table;
+    private final int mask;
+
+    /**
+     * @param symbols key is {@code R$type.name} like 'R$id.title'
+     */
+    SymbolIndex(Map<String, Integer> symbols) {
+        final int size = symbols.size();
+        List<String> typeList = new ArrayList<>();
+        StringBuilder pool = new StringBuilder(size * 16);
+        typeOf = new short[size];
+        nameStart = new int[size + 1];
+        hashes = new int[size];
+        values = new int[size];
+        int capacity = Integer.highestOneBit(Math.max(2, size * 2 - 1)) << 1;
+        table = new int[capacity];
+        mask = capacity - 1;
+        Map<String, Integer> typeIds = new HashMap<>();
+        int e = 0;
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(symbols).entrySet()) {
+            String key = entry.getKey();
+            int dot = key.indexOf('.');
+            String type = key.substring(0, dot);
+            Integer typeId = typeIds.get(type);
+            if (typeId == null) {
+                if (typeList.size() > Short.MAX_VALUE) {
+                    throw new IllegalStateException("Too many R types " + typeList.size());
+                }
+                typeId = typeList.size();
+                typeIds.put(type, typeId);
+                typeList.add(type);
+            }
+            typeOf[e] = typeId.shortValue();
+            nameStart[e] = pool.length();
+            pool.append(key, dot + 1, key.length());
+            values[e] = entry.getValue();
+            int h = hashes[e] = hash(type, 0, key.substring(dot + 1));
+            int i = h & mask;
+            while (table[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            table[i] = ++e;
+        }
+        nameStart[size] = pool.length();
+        types = typeList.toArray(new String[0]);
+        namePool = new char[pool.length()];
+        pool.getChars(0, pool.length(), namePool, 0);
+    }
+
+    int size() {
+        return values.length;
+    }
+
+    /**
+     * @param owner internal name of class, like 'android/support/v7/appcompat/R$id'
+     * @param name  field name
+     * @return index of the symbol to call {@link #valueAt(int)} or -1 if not found
+     */
+    int indexOf(String owner, String name) {
+        int from = owner.lastIndexOf('/') + 1;
+        int typeLength = owner.length() - from;
+        int h = hash(owner, from, name);
+        for (int i = h & mask, e; (e = table[i]) != 0; i = (i + 1) & mask) {
+            e--;
+            if (hashes[e] != h) continue;
+            String type = types[typeOf[e]];
+            if (type.length() == typeLength
+                    && owner.startsWith(type, from)
+                    && nameEquals(e, name)) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    private boolean nameEquals(int e, String name) {
+        int start = nameStart[e];
+        int length = name.length();
+        if (nameStart[e + 1] - start != length) return false;
+        for (int i = 0; i < length; i++) {
+            if (namePool[start + i] != name.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return like 'R$id', entries are sorted by {@code R$type.name}
+     */
+    String typeAt(int index) {
+        return types[typeOf[index]];
+    }
+
+    String nameAt(int index) {
+        return new String(namePool, nameStart[index], nameStart[index + 1] - nameStart[index]);
+    }
+
+    int valueAt(int index) {
+        return values[index];
+    }
+
+    /**
+     * Hash of {@code type.substring(from) + '.' + name} without creating it.
+     */
+    private static int hash(String type, int from, String name) {
+        int h = 0;
+        for (int i = from, len = type.length(); i < len; i++) {
+            h = 31 * h + type.charAt(i);
+        }
+        h = 31 * h + name.hashCode();
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * Reads text symbol table (R.txt) generated by aapt, lines like
+ * <pre>
+ * int id title 0x7f0a0001
+ * int[] styleable View { 0x7f010001, 0x7f010002 }
+ * int styleable View_background 0
+ * </pre>
+ * The file is small, so it's read into a heap buffer at once and tokenized in place,
+ * only names are decoded to strings. It's not memory-mapped, which would keep the file
+ * locked on Windows until the mapping is collected.
+ *
+ * @author yrom
+ */
+final class SymbolListReader {
+    private final ByteBuffer buffer;
+    private final Path file;
+    private final StringBuilder word = new StringBuilder(64);
+    private int line = 1;
+
+    private SymbolListReader(ByteBuffer buffer, Path file) {
+        this.buffer = buffer;
+        this.file = file;
+    }
+
+    static void read(Path file, RSymbols.Builder builder) throws IOException {
+        new SymbolListReader(ByteBuffer.wrap(Files.readAllBytes(file)), file).readAll(builder);
+    }
+
+    private void readAll(RSymbols.Builder builder) throws IOException {
+        while (skipBlanks()) {
+            String javaType = readWord();
+            String type = "R$" + readWord();
+            String name = readWord();
+            if ("int[]".equals(javaType)) {
+                builder.putStyleable(name, readIntArray());
+            } else if ("int".equals(javaType)) {
+                builder.putSymbol(type + '.' + name, readInt());
+            } else {
+                throw error("Unknown type '" + javaType + "'");
+            }
+            skipLine();
+        }
+    }
+
+    /**
+     * Skip spaces and empty lines.
+     *
+     * @return false if reached the end
+     */
+    private boolean skipBlanks() {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get(buffer.position());
+            if (b == '\n') {
+                line++;
+            } else if (b != ' ' && b != '\t' && b != '\r') {
+                return true;
+            }
+            buffer.get();
+        }
+        return false;
+    }
+
+    private void skipSpaces() {
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get(buffer.position());
+            if (b != ' ' && b != '\t') {
+                return;
+            }
+            buffer.get();
+        }
+    }
+
+    private void skipLine() {
+        while (buffer.hasRemaining() && buffer.get(buffer.position()) != '\n') {
+            buffer.get();
+        }
+    }
+
+    private String readWord() throws IOException {
+        skipSpaces();
+        word.setLength(0);
+        while (buffer.hasRemaining()) {
+            byte b = buffer.get(buffer.position());
+            if (b == ' ' || b == '\t' || b == '\r' || b == '\n') {
+                break;
+            }
+            word.append((char) (b & 0xff)); // names are ascii
+            buffer.get();
+        }
+        if (word.length() == 0) {
+            throw error("Expected a word");
+        }
+        return word.toString();
+    }
+
+    /**
+     * @return decimal or hexadecimal starts with '0x'
+     */
+    private int readInt() throws IOException {
+        skipSpaces();
+        int radix = 10;
+        if (buffer.remaining() >= 2 && buffer.get(buffer.position()) == '0'
+                && (buffer.get(buffer.position() + 1) | 0x20) == 'x') {
+            radix = 16;
+            buffer.position(buffer.position() + 2);
+        }
+        long value = 0;
+        int digits = 0;
+        while (buffer.hasRemaining()) {
+            int digit = Character.digit(buffer.get(buffer.position()), radix);
+            if (digit < 0) {
+                break;
+            }
+            value = value * radix + digit;
+            if (value > 0xffffffffL) {
+                throw error("Too large number");
+            }
+            digits++;
+            buffer.get();
+        }
+        if (digits == 0) {
+            throw error("Expected a number");
+        }
+        return (int) value;
+    }
+
+    private int[] readIntArray() throws IOException {
+        skipSpaces();
+        expect('{');
+        int[] values = new int[16];
+        int size = 0;
+        while (true) {
+            skipSpaces();
+            if (!buffer.hasRemaining()) {
+                throw error("Expected '}'");
+            }
+            if (buffer.get(buffer.position()) == '}') {
+                buffer.get();
+                break;
+            }
+            if (size > 0) {
+                expect(',');
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = readInt();
+        }
+        return Arrays.copyOf(values, size);
+    }
+
+    private void expect(char c) throws IOException {
+        skipSpaces();
+        if (!buffer.hasRemaining() || buffer.get() != c) {
+            throw error("Expected '" + c + "'");
+        }
+    }
+
+    private IOException error(String message) {
+        return new IOException(message + " at " + file + ":" + line);
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.android.build.api.transform.Status;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A directory or jar input to proceed, serializable so that it can be handed to gradle workers.
+ *
+ * @author yrom
+ */
+final class WorkUnit implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Runs units, in the order of they are given.
+     */
+    interface Runner {
+        void run(List<WorkUnit> units);
+    }
+
+    private final File src;
+    private final File dst;
+    private final boolean jar;
+    /**
+     * True if src is never modified in place, so that outputs may be hard links of it
+     */
+    private final boolean immutable;
+    /**
+     * All files of a directory, null if only changed files are proceeded
+     */
+    private final ArrayList<InputIndex.Entry> files;
+    /**
+     * Changed files of a directory, null to proceed all of them
+     */
+    private final HashMap<File, Status> changedFiles;
+
+    private WorkUnit(File src, File dst, boolean jar, boolean immutable,
+                     List<InputIndex.Entry> files, Map<File, Status> changedFiles) {
+        this.src = src;
+        this.dst = dst;
+        this.jar = jar;
+        this.immutable = immutable;
+        this.files = files == null ? null : new ArrayList<>(files);
+        this.changedFiles = changedFiles == null ? null : new HashMap<>(changedFiles);
+    }
+
+    /**
+     * @param files all files of the directory, see {@link InputIndex#filesOf(File)}
+     */
+    static WorkUnit ofDirectory(File src, File dst, List<InputIndex.Entry> files) {
+        return new WorkUnit(src, dst, false, false, files, null);
+    }
+
+    static WorkUnit ofChangedFiles(File src, File dst, Map<File, Status> changedFiles) {
+        return new WorkUnit(src, dst, false, false, null, changedFiles);
+    }
+
+    /**
+     * @param immutable true if the jar is never modified in place, like jars of external libraries,
+     *                  unlike those of sub-projects and intermediates, which may be rewritten by gradle
+     */
+    static WorkUnit ofJar(File src, File dst, boolean immutable) {
+        return new WorkUnit(src, dst, true, immutable, null, null);
+    }
+
+    /**
+     * @return estimated cost to proceed, see {@link CostModel}
+     */
+    long estimatedCost() {
+        if (!src.exists()) {
+            return 0;
+        }
+        if (jar) {
+            return src.length();
+        }
+        if (files != null) {
+            return files.stream().mapToLong(entry -> entry.size).sum();
+        }
+        return changedFiles.keySet().stream().mapToLong(File::length).sum();
+    }
+
+    /**
+     * @param compression {@link JarProcessor#STORED} or a deflate level of transformed jar entries
+     */
+    Processor newProcessor(Function<byte[], byte[]> transform, MemoryBudget budget,
+                           JarScanner scanner, JarCache jarCache, int compression) {
+        Path source = src.toPath();
+        Path target = dst.toPath();
+        if (Files.notExists(source)) {
+            // removed
+            return jar ? () -> deleteFile(target) : () -> deleteDirectory(target);
+        }
+        if (jar) {
+            Processor processor = new JarProcessor(transform, source, target, budget, scanner, compression,
+                    immutable);
+            return jarCache.isEnabled() ? () -> jarCache.proceed(source, target, processor) : processor;
+        }
+        if (files != null) {
+            return new DirProcessor(transform, source, target, files);
+        }
+        return () -> new DirProcessor(transform, source, target, Collections.emptyList()).proceed(changedFiles);
+    }
+
+    /**
+     * @return processor which copies inputs as they are by {@link FileCopier}
+     */
+    Processor newLinker() {
+        Path source = src.toPath();
+        Path target = dst.toPath();
+        if (Files.notExists(source)) {
+            // removed
+            return jar ? () -> deleteFile(target) : () -> deleteDirectory(target);
+        }
+        if (jar) {
+            return () -> copy(source, target, immutable);
+        }
+        if (files != null) {
+            return () -> files.forEach(entry -> {
+                Path file = entry.file.toPath();
+                copy(file, target.resolve(source.relativize(file).toString()), false);
+            });
+        }
+        return () -> changedFiles.forEach((file, status) -> {
+            Path changed = target.resolve(source.relativize(file.toPath()).toString());
+            switch (status) {
+                case NOTCHANGED:
+                    break;
+                case REMOVED:
+                    deleteFile(changed);
+                    break;
+                default: // ADDED or CHANGED
+                    copy(file.toPath(), changed, false);
+            }
+        });
+    }
+
+    /**
+     * @return units sorted by cost, heaviest first, so they won't be left to the end
+     */
+    static List<WorkUnit> heaviestFirst(List<WorkUnit> units) {
+        return units.stream()
+                .sorted(Comparator.comparingLong(WorkUnit::estimatedCost).reversed())
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Proceed units in threads of the caller's pool.
+     */
+    static void proceedAll(List<WorkUnit> units, Function<byte[], byte[]> transform,
+                           MemoryBudget budget, JarScanner scanner, JarCache jarCache, int compression) {
+        CostModel.forEach(heaviestFirst(units), WorkUnit::estimatedCost,
+                unit -> unit.newProcessor(transform, budget, scanner, jarCache, compression).proceed());
+    }
+
+    /**
+     * @param link true to link src if possible, only if it's never modified in place
+     */
+    private static void copy(Path src, Path dst, boolean link) {
+        try {
+            Files.createDirectories(dst.getParent());
+            Files.deleteIfExists(dst);
+            if (link) {
+                FileCopier.linkOrCopy(src, dst);
+            } else {
+                FileCopier.copy(src, dst);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteDirectory(Path dir) {
+        try {
+            FileUtils.deleteDirectory(dir.toFile());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return src.getName();
+    }
+}
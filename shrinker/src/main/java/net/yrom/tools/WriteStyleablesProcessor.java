@@ -24,7 +24,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
-import java.util.Map;
 
 /**
  * @author yrom
@@ -48,8 +47,9 @@ final class WriteStyleablesProcessor implements Processor {
                 null,
                 "java/lang/Object",
                 null);
-        for (String name : symbols.getStyleables().keySet()) {
-            writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, name, "[I", null, null);
+        for (int i = 0; i < symbols.styleableCount(); i++) {
+            writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL,
+                    symbols.styleableName(i), "[I", null, null);
         }
 
         writeClinit(writer);
@@ -66,13 +66,12 @@ final class WriteStyleablesProcessor implements Processor {
     }
 
     private void writeClinit(ClassWriter writer) {
-        Map<String, int[]> styleables = symbols.getStyleables();
         MethodVisitor clinit = writer.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
         clinit.visitCode();
 
-        for (Map.Entry<String, int[]> entry : styleables.entrySet()) {
-            final String field = entry.getKey();
-            final int[] value = entry.getValue();
+        for (int s = 0; s < symbols.styleableCount(); s++) {
+            final String field = symbols.styleableName(s);
+            final int[] value = symbols.styleableValues(s);
             final int length = value.length;
             pushInt(clinit, length);
             clinit.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
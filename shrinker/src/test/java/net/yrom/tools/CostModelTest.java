@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yrom
+ */
+public class CostModelTest {
+    private static final int PARALLELISM = 4;
+
+    @Test
+    public void keepsLightItemsInOneBatch() throws Exception {
+        List<Long> items = Collections.nCopies(20, 1024L);
+
+        List<List<Long>> batches = inPool(() -> CostModel.split(items, Long::longValue));
+
+        assertEquals(1, batches.size());
+        assertEquals(items, batches.get(0));
+    }
+
+    @Test
+    public void splitsHeavyItemsInOrder() throws Exception {
+        List<Long> items = IntStream.range(0, 200)
+                .mapToObj(i -> 64 * 1024L + i)
+                .collect(Collectors.toList());
+
+        List<List<Long>> batches = inPool(() -> CostModel.split(items, Long::longValue));
+
+        long total = items.stream().mapToLong(cost -> cost + CostModel.FILE_OVERHEAD).sum();
+        long target = Math.max(CostModel.MIN_TASK_COST, total / (PARALLELISM * 4));
+        // several batches per thread, so that idle threads can steal
+        assertTrue(batches.size() > PARALLELISM);
+        List<Long> joined = new ArrayList<>();
+        for (int i = 0; i < batches.size(); i++) {
+            List<Long> batch = batches.get(i);
+            long cost = batch.stream().mapToLong(item -> item + CostModel.FILE_OVERHEAD).sum();
+            if (i < batches.size() - 1) {
+                assertTrue("batch " + i + " costs " + cost, cost >= target);
+                assertTrue("batch " + i + " costs " + cost,
+                        cost - batch.get(batch.size() - 1) - CostModel.FILE_OVERHEAD < target);
+            }
+            joined.addAll(batch);
+        }
+        assertEquals(items, joined);
+    }
+
+    @Test
+    public void keepsAnItemHeavierThanABatchAlone() throws Exception {
+        List<Long> items = new ArrayList<>(Collections.nCopies(10, 64 * 1024L));
+        items.add(0, 64 * 1024 * 1024L);
+
+        List<List<Long>> batches = inPool(() -> CostModel.split(items, Long::longValue));
+
+        assertEquals(Collections.singletonList(64 * 1024 * 1024L), batches.get(0));
+    }
+
+    @Test
+    public void splitsNothingWhenRunSequentially() throws Exception {
+        List<Long> items = Collections.nCopies(200, 1024 * 1024L);
+
+        List<List<Long>> batches = inPool(() -> {
+            List<List<List<Long>>> result = new ArrayList<>();
+            CostModel.runSequentially(() -> result.add(CostModel.split(items, Long::longValue)));
+            return result.get(0);
+        });
+
+        assertEquals(1, batches.size());
+    }
+
+    @Test
+    public void runsEachIndexOnce() throws Exception {
+        int size = 1000;
+        AtomicIntegerArray visits = new AtomicIntegerArray(size);
+
+        inPool(() -> {
+            CostModel.forEachIndex(size, i -> 16 * 1024L, visits::incrementAndGet);
+            return null;
+        });
+
+        for (int i = 0; i < size; i++) {
+            assertEquals("visits of " + i, 1, visits.get(i));
+        }
+    }
+
+    @Test
+    public void runsEachItemOnceOutOfPool() {
+        List<Integer> items = IntStream.range(0, 1000).boxed().collect(Collectors.toList());
+        AtomicIntegerArray visits = new AtomicIntegerArray(items.size());
+
+        // forked into the common pool
+        CostModel.forEach(items, item -> 16 * 1024L, visits::incrementAndGet);
+
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals("visits of " + i, 1, visits.get(i));
+        }
+    }
+
+    private static <T> T inPool(Callable<T> task) throws Exception {
+        ForkJoinPool pool = new ForkJoinPool(PARALLELISM);
+        try {
+            return pool.submit(task).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
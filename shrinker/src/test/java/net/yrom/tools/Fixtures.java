@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.android.build.api.transform.DirectoryInput;
+import com.android.build.api.transform.JarInput;
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.Status;
+import com.android.build.api.transform.TransformInput;
+
+import org.apache.commons.io.IOUtils;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Classes, jars and transform inputs shared by tests.
+ *
+ * @author yrom
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    /**
+     * @return R class of an app, whose fields are constants
+     */
+    static byte[] rClass(String name, Map<String, Integer> ints, Map<String, int[]> arrays) {
+        return rClass(name, ints, arrays, true);
+    }
+
+    /**
+     * @return R class of a library, whose fields are non-final and assigned in {@code <clinit>}
+     */
+    static byte[] libraryRClass(String name, Map<String, Integer> ints, Map<String, int[]> arrays) {
+        return rClass(name, ints, arrays, false);
+    }
+
+    private static byte[] rClass(String name, Map<String, Integer> ints, Map<String, int[]> arrays,
+                                 boolean constant) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        int access = Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | (constant ? Opcodes.ACC_FINAL : 0);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER | (constant ? Opcodes.ACC_FINAL : 0),
+                name, null, "java/lang/Object", null);
+        ints.forEach((field, value) -> writer.visitField(access, field, "I", null, constant ? value : null));
+        arrays.forEach((field, values) -> writer.visitField(access, field, "[I", null, null));
+        if (!constant || !arrays.isEmpty()) {
+            MethodVisitor clinit = writer.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+            clinit.visitCode();
+            if (!constant) {
+                ints.forEach((field, value) -> {
+                    clinit.visitLdcInsn(value);
+                    clinit.visitFieldInsn(Opcodes.PUTSTATIC, name, field, "I");
+                });
+            }
+            arrays.forEach((field, values) -> {
+                clinit.visitIntInsn(Opcodes.SIPUSH, values.length);
+                clinit.visitIntInsn(Opcodes.NEWARRAY, Opcodes.T_INT);
+                for (int i = 0; i < values.length; i++) {
+                    clinit.visitInsn(Opcodes.DUP);
+                    clinit.visitIntInsn(Opcodes.SIPUSH, i);
+                    clinit.visitLdcInsn(values[i]);
+                    clinit.visitInsn(Opcodes.IASTORE);
+                }
+                clinit.visitFieldInsn(Opcodes.PUTSTATIC, name, field, "[I");
+            });
+            clinit.visitInsn(Opcodes.RETURN);
+            clinit.visitMaxs(0, 0);
+            clinit.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * @param rClass like 'com/app/R$id'
+     * @return class with a method which returns the int field of rClass
+     */
+    static byte[] classReferringR(String name, String rClass, String field) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        MethodVisitor method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "get", "()I", null, null);
+        method.visitCode();
+        method.visitFieldInsn(Opcodes.GETSTATIC, rClass, field, "I");
+        method.visitInsn(Opcodes.IRETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * @return class which never refers to R
+     */
+    static byte[] plainClass(String name) {
+        ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        writer.visitField(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC | Opcodes.ACC_FINAL, "NAME", "Ljava/lang/String;",
+                null, name);
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * @param method {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED} of all entries,
+     *               a name ending with '/' is a directory
+     */
+    static void writeJar(Path jar, Map<String, byte[]> entries, int method) throws IOException {
+        Files.createDirectories(jar.getParent());
+        try (OutputStream out = Files.newOutputStream(jar);
+             ZipOutputStream zip = new ZipOutputStream(out)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                ZipEntry zipEntry = new ZipEntry(entry.getKey());
+                byte[] bytes = entry.getValue();
+                zipEntry.setMethod(method);
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(bytes);
+                    zipEntry.setCrc(crc.getValue());
+                    zipEntry.setSize(bytes.length);
+                    zipEntry.setCompressedSize(bytes.length);
+                }
+                zip.putNextEntry(zipEntry);
+                zip.write(bytes);
+                zip.closeEntry();
+            }
+        }
+    }
+
+    /**
+     * @return entries of the jar in order, directories are mapped to empty arrays
+     */
+    static Map<String, byte[]> readJar(Path jar) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (ZipFile zip = new ZipFile(jar.toFile())) {
+            for (ZipEntry entry : Collections.list(zip.entries())) {
+                try (InputStream in = zip.getInputStream(entry)) {
+                    entries.put(entry.getName(), IOUtils.toByteArray(in));
+                }
+            }
+        }
+        return entries;
+    }
+
+    static void write(Path file, byte[] bytes) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, bytes);
+    }
+
+    static DirectoryInput directory(File dir, Map<File, Status> changedFiles) {
+        return new DirectoryInput() {
+            @Override
+            public Map<File, Status> getChangedFiles() {
+                return changedFiles;
+            }
+
+            @Override
+            public String getName() {
+                return dir.getName();
+            }
+
+            @Override
+            public File getFile() {
+                return dir;
+            }
+
+            @Override
+            public Set<ContentType> getContentTypes() {
+                return Collections.singleton(QualifiedContent.DefaultContentType.CLASSES);
+            }
+
+            @Override
+            public Set<? super Scope> getScopes() {
+                return Collections.singleton(Scope.PROJECT);
+            }
+        };
+    }
+
+    static JarInput jar(File jar, Status status, QualifiedContent.Scope scope) {
+        return new JarInput() {
+            @Override
+            public Status getStatus() {
+                return status;
+            }
+
+            @Override
+            public String getName() {
+                return jar.getName();
+            }
+
+            @Override
+            public File getFile() {
+                return jar;
+            }
+
+            @Override
+            public Set<ContentType> getContentTypes() {
+                return Collections.singleton(QualifiedContent.DefaultContentType.CLASSES);
+            }
+
+            @Override
+            public Set<? super Scope> getScopes() {
+                return Collections.singleton(scope);
+            }
+        };
+    }
+
+    static TransformInput input(List<DirectoryInput> directories, List<JarInput> jars) {
+        return new TransformInput() {
+            @Override
+            public Collection<JarInput> getJarInputs() {
+                return jars;
+            }
+
+            @Override
+            public Collection<DirectoryInput> getDirectoryInputs() {
+                return directories;
+            }
+        };
+    }
+}
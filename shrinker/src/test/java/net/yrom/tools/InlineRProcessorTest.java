@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.android.build.api.transform.QualifiedContent.Scope;
+import com.android.build.api.transform.Status;
+import com.android.build.api.transform.TransformInput;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yrom
+ */
+public class InlineRProcessorTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Path in;
+    private Path out;
+    private final List<String> proceeded = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        in = temporaryFolder.newFolder("in").toPath();
+        out = temporaryFolder.newFolder("out").toPath();
+    }
+
+    @Test
+    public void proceedsChangedFilesOfDirectory() throws IOException {
+        byte[] added = Fixtures.plainClass("com/app/A");
+        Fixtures.write(in.resolve("classes/com/app/A.class"), added);
+        Fixtures.write(in.resolve("classes/com/app/B.class"), Fixtures.plainClass("com/app/B"));
+        // outputs of the previous build
+        Fixtures.write(out.resolve("classes/com/app/B.class"), new byte[]{1});
+        Fixtures.write(out.resolve("classes/com/app/C.class"), new byte[]{2});
+
+        proceed(true, Fixtures.input(Collections.singletonList(Fixtures.directory(in.resolve("classes").toFile(),
+                ImmutableMap.of(
+                        in.resolve("classes/com/app/A.class").toFile(), Status.ADDED,
+                        in.resolve("classes/com/app/B.class").toFile(), Status.NOTCHANGED,
+                        in.resolve("classes/com/app/C.class").toFile(), Status.REMOVED))),
+                Collections.emptyList()));
+
+        assertEquals(Collections.singletonList("classes"), proceeded);
+        assertArrayEquals(added, Files.readAllBytes(out.resolve("classes/com/app/A.class")));
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(out.resolve("classes/com/app/B.class")));
+        assertFalse(Files.exists(out.resolve("classes/com/app/C.class")));
+    }
+
+    @Test
+    public void skipsUnchangedDirectory() throws IOException {
+        Fixtures.write(in.resolve("classes/com/app/A.class"), Fixtures.plainClass("com/app/A"));
+
+        proceed(true, Fixtures.input(Collections.singletonList(Fixtures.directory(in.resolve("classes").toFile(),
+                Collections.emptyMap())), Collections.emptyList()));
+
+        assertEquals(Collections.emptyList(), proceeded);
+        assertFalse(Files.exists(out.resolve("classes")));
+    }
+
+    @Test
+    public void deletesOutputOfRemovedDirectory() throws IOException {
+        Fixtures.write(out.resolve("classes/com/app/A.class"), new byte[]{1});
+
+        proceed(true, Fixtures.input(Collections.singletonList(Fixtures.directory(in.resolve("classes").toFile(),
+                Collections.emptyMap())), Collections.emptyList()));
+
+        assertEquals(Collections.singletonList("classes"), proceeded);
+        assertFalse(Files.exists(out.resolve("classes")));
+    }
+
+    @Test
+    public void proceedsJarsByStatus() throws IOException {
+        writeJar("changed.jar");
+        writeJar("unchanged.jar");
+        Fixtures.write(out.resolve("unchanged.jar"), new byte[]{1});
+        Fixtures.write(out.resolve("removed.jar"), new byte[]{2});
+
+        proceed(true, Fixtures.input(Collections.emptyList(), Arrays.asList(
+                Fixtures.jar(in.resolve("changed.jar").toFile(), Status.CHANGED, Scope.SUB_PROJECTS),
+                Fixtures.jar(in.resolve("unchanged.jar").toFile(), Status.NOTCHANGED, Scope.SUB_PROJECTS),
+                Fixtures.jar(in.resolve("removed.jar").toFile(), Status.REMOVED, Scope.SUB_PROJECTS))));
+
+        assertEquals(Arrays.asList("changed.jar", "removed.jar"), proceeded);
+        assertArrayEquals(Files.readAllBytes(in.resolve("changed.jar")),
+                Files.readAllBytes(out.resolve("changed.jar")));
+        assertArrayEquals(new byte[]{1}, Files.readAllBytes(out.resolve("unchanged.jar")));
+        assertFalse(Files.exists(out.resolve("removed.jar")));
+    }
+
+    @Test
+    public void linksOnlyJarsOfExternalLibraries() throws IOException {
+        writeJar("library.jar");
+        writeJar("project.jar");
+
+        proceed(true, Fixtures.input(Collections.emptyList(), Arrays.asList(
+                Fixtures.jar(in.resolve("library.jar").toFile(), Status.ADDED, Scope.EXTERNAL_LIBRARIES),
+                Fixtures.jar(in.resolve("project.jar").toFile(), Status.ADDED, Scope.SUB_PROJECTS))));
+
+        assertTrue(Files.isSameFile(in.resolve("library.jar"), out.resolve("library.jar")));
+        assertFalse(Files.isSameFile(in.resolve("project.jar"), out.resolve("project.jar")));
+    }
+
+    @Test
+    public void proceedsEverythingIfNotIncremental() throws IOException {
+        byte[] a = Fixtures.plainClass("com/app/A");
+        Fixtures.write(in.resolve("classes/com/app/A.class"), a);
+        writeJar("unchanged.jar");
+        Fixtures.write(out.resolve("unchanged.jar"), new byte[]{1});
+
+        proceed(false, Fixtures.input(
+                Collections.singletonList(Fixtures.directory(in.resolve("classes").toFile(), Collections.emptyMap())),
+                Collections.singletonList(
+                        Fixtures.jar(in.resolve("unchanged.jar").toFile(), Status.NOTCHANGED, Scope.SUB_PROJECTS))));
+
+        assertEquals(Arrays.asList("classes", "unchanged.jar"), proceeded);
+        assertArrayEquals(a, Files.readAllBytes(out.resolve("classes/com/app/A.class")));
+        assertArrayEquals(Files.readAllBytes(in.resolve("unchanged.jar")),
+                Files.readAllBytes(out.resolve("unchanged.jar")));
+    }
+
+    private void writeJar(String name) throws IOException {
+        Fixtures.writeJar(in.resolve(name), ImmutableMap.of(
+                "com/lib/Plain.class", Fixtures.plainClass("com/lib/Plain")), ZipEntry.DEFLATED);
+    }
+
+    private void proceed(boolean incremental, TransformInput input) {
+        Collection<TransformInput> inputs = Collections.singletonList(input);
+        new InlineRProcessor(inputs, InputIndex.of(inputs), content -> out.resolve(content.getName()), incremental,
+                units -> units.forEach(unit -> {
+                    proceeded.add(unit.toString());
+                    unit.newProcessor(Function.identity(), MemoryBudget.ofMegabytes(1), new JarScanner(Runnable::run),
+                            new JarCache(null, "fp", JarProcessor.STORED), JarProcessor.STORED).proceed();
+                })).proceed();
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * @author yrom
+ */
+public class JarCacheTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File dir;
+    private Path src;
+    private Path dst;
+    private final AtomicInteger proceeded = new AtomicInteger();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = temporaryFolder.newFolder("cache");
+        src = temporaryFolder.getRoot().toPath().resolve("in/classes.jar");
+        dst = temporaryFolder.getRoot().toPath().resolve("out/classes.jar");
+        Fixtures.write(src, new byte[]{1, 2, 3});
+        Files.createDirectories(dst.getParent());
+    }
+
+    @Test
+    public void proceedsAndPutsOnMiss() throws IOException {
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, dst, writing(new byte[]{4}));
+
+        assertEquals(1, proceeded.get());
+        assertArrayEquals(new byte[]{4}, Files.readAllBytes(dst));
+    }
+
+    @Test
+    public void reusesOutputOnHit() throws IOException {
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, dst, writing(new byte[]{4}));
+        Files.delete(dst);
+
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, dst, writing(new byte[]{5}));
+
+        assertEquals(1, proceeded.get());
+        assertArrayEquals(new byte[]{4}, Files.readAllBytes(dst));
+    }
+
+    @Test
+    public void missesOnDifferentKeys() throws IOException {
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, dst, writing(new byte[]{4}));
+
+        new JarCache(dir, "fp2", JarProcessor.STORED).proceed(src, dst, writing(new byte[]{5}));
+        assertEquals(2, proceeded.get());
+        assertArrayEquals(new byte[]{5}, Files.readAllBytes(dst));
+
+        new JarCache(dir, "fp", 1).proceed(src, dst, writing(new byte[]{6}));
+        assertEquals(3, proceeded.get());
+        assertArrayEquals(new byte[]{6}, Files.readAllBytes(dst));
+
+        Fixtures.write(src, new byte[]{1, 2});
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, dst, writing(new byte[]{7}));
+        assertEquals(4, proceeded.get());
+        assertArrayEquals(new byte[]{7}, Files.readAllBytes(dst));
+    }
+
+    @Test
+    public void remembersNoOutput() throws IOException {
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, dst, proceeded::incrementAndGet);
+        Fixtures.write(dst, new byte[]{4});
+
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, dst, writing(new byte[]{5}));
+
+        assertEquals(1, proceeded.get());
+        assertFalse(Files.exists(dst));
+    }
+
+    @Test
+    public void putsCopyOfOutput() throws IOException {
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, dst, writing(new byte[]{4}));
+        // outputs may be rewritten in place by later builds
+        Files.write(dst, new byte[]{9});
+
+        Path other = dst.resolveSibling("other.jar");
+        new JarCache(dir, "fp", JarProcessor.STORED).proceed(src, other, writing(new byte[]{5}));
+
+        assertEquals(1, proceeded.get());
+        assertArrayEquals(new byte[]{4}, Files.readAllBytes(other));
+    }
+
+    private Processor writing(byte[] output) {
+        return () -> {
+            proceeded.incrementAndGet();
+            try {
+                Files.write(dst, output);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        };
+    }
+}
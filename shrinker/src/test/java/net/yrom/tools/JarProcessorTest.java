@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.Function;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author yrom
+ */
+public class JarProcessorTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private Function<byte[], byte[]> transform;
+    private Path src;
+    private Path dst;
+
+    @Before
+    public void setUp() throws IOException {
+        RSymbols.Builder builder = new RSymbols.Builder();
+        builder.putSymbol("R$id.title", 0x7f0a0001);
+        transform = new ClassTransform(builder.build());
+        src = temporaryFolder.getRoot().toPath().resolve("in/classes.jar");
+        dst = temporaryFolder.getRoot().toPath().resolve("out/classes.jar");
+        Files.createDirectories(dst.getParent());
+    }
+
+    @Test
+    public void copiesUntouchedEntriesRaw() throws IOException {
+        byte[] plain = Fixtures.plainClass("com/lib/Plain");
+        Fixtures.writeJar(src, ImmutableMap.of(
+                "com/lib/Plain.class", plain,
+                "com/lib/Title.class", Fixtures.classReferringR("com/lib/Title", "com/app/R$id", "title")),
+                ZipEntry.DEFLATED);
+
+        proceed(JarProcessor.STORED, false);
+
+        try (ZipFile in = new ZipFile(src.toFile()); ZipFile out = new ZipFile(dst.toFile())) {
+            ZipEntry origin = in.getEntry("com/lib/Plain.class");
+            ZipEntry copied = out.getEntry("com/lib/Plain.class");
+            assertEquals(ZipEntry.DEFLATED, copied.getMethod());
+            assertEquals(origin.getCompressedSize(), copied.getCompressedSize());
+            assertEquals(origin.getCrc(), copied.getCrc());
+            assertEquals(ZipEntry.STORED, out.getEntry("com/lib/Title.class").getMethod());
+        }
+        Map<String, byte[]> entries = Fixtures.readJar(dst);
+        assertArrayEquals(plain, entries.get("com/lib/Plain.class"));
+        byte[] inlined = entries.get("com/lib/Title.class");
+        assertFalse(ConstantPoolScanner.attemptToVisitR(inlined));
+    }
+
+    @Test
+    public void storesOrDeflatesChangedEntries() throws IOException {
+        byte[] title = Fixtures.classReferringR("com/lib/Title", "com/app/R$id", "title");
+        Fixtures.writeJar(src, ImmutableMap.of("com/lib/Title.class", title), ZipEntry.STORED);
+        // compressible enough to be deflated
+        byte[] changed = new byte[4096];
+        transform = bytes -> changed;
+
+        proceed(JarProcessor.STORED, false);
+        assertMethod(ZipEntry.STORED, "com/lib/Title.class");
+        assertArrayEquals(changed, Fixtures.readJar(dst).get("com/lib/Title.class"));
+
+        proceed(Deflater.BEST_SPEED, false);
+        assertMethod(ZipEntry.DEFLATED, "com/lib/Title.class");
+        assertArrayEquals(changed, Fixtures.readJar(dst).get("com/lib/Title.class"));
+
+        // kept STORED if deflating doesn't make it smaller
+        byte[] incompressible = new byte[64];
+        new Random(0).nextBytes(incompressible);
+        transform = bytes -> incompressible;
+        proceed(Deflater.BEST_COMPRESSION, false);
+        assertMethod(ZipEntry.STORED, "com/lib/Title.class");
+        assertArrayEquals(incompressible, Fixtures.readJar(dst).get("com/lib/Title.class"));
+    }
+
+    @Test
+    public void linksImmutableJarWithoutReferencesToR() throws IOException {
+        Fixtures.writeJar(src, ImmutableMap.of(
+                "com/", new byte[0],
+                "com/lib/Plain.class", Fixtures.plainClass("com/lib/Plain")),
+                ZipEntry.DEFLATED);
+
+        proceed(JarProcessor.STORED, true);
+
+        assertTrue(Files.isSameFile(src, dst));
+    }
+
+    @Test
+    public void copiesMutableJarWithoutReferencesToR() throws IOException {
+        Fixtures.writeJar(src, ImmutableMap.of(
+                "com/", new byte[0],
+                "com/lib/Plain.class", Fixtures.plainClass("com/lib/Plain")),
+                ZipEntry.DEFLATED);
+
+        proceed(JarProcessor.STORED, false);
+
+        assertFalse(Files.isSameFile(src, dst));
+        assertArrayEquals(Files.readAllBytes(src), Files.readAllBytes(dst));
+    }
+
+    @Test
+    public void stripsResourcesWhetherReferringToROrNot() throws IOException {
+        for (byte[] clazz : Arrays.asList(Fixtures.plainClass("com/lib/C"),
+                Fixtures.classReferringR("com/lib/C", "com/app/R$id", "title"))) {
+            Fixtures.writeJar(src, ImmutableMap.of(
+                    "com/", new byte[0],
+                    "META-INF/MANIFEST.MF", new byte[]{'x'},
+                    "com/lib/C.class", clazz),
+                    ZipEntry.DEFLATED);
+
+            proceed(JarProcessor.STORED, true);
+
+            assertFalse(Files.isSameFile(src, dst));
+            assertEquals(Arrays.asList("com/", "com/lib/C.class"),
+                    Arrays.asList(Fixtures.readJar(dst).keySet().toArray()));
+        }
+    }
+
+    @Test
+    public void stripsConstantRClasses() throws IOException {
+        Fixtures.writeJar(src, ImmutableMap.of(
+                "com/app/R.class", Fixtures.rClass("com/app/R", ImmutableMap.of(), ImmutableMap.of()),
+                "com/app/R$id.class", Fixtures.rClass("com/app/R$id",
+                        ImmutableMap.of("title", 0x7f0a0001), ImmutableMap.of()),
+                "com/app/Title.class", Fixtures.classReferringR("com/app/Title", "com/app/R$id", "title")),
+                ZipEntry.DEFLATED);
+
+        proceed(JarProcessor.STORED, false);
+
+        assertEquals(Arrays.asList("com/app/Title.class"),
+                Arrays.asList(Fixtures.readJar(dst).keySet().toArray()));
+    }
+
+    @Test
+    public void keepsRClassesOfLibraries() throws IOException {
+        Fixtures.writeJar(src, ImmutableMap.of(
+                "com/lib/R.class", Fixtures.rClass("com/lib/R", ImmutableMap.of(), ImmutableMap.of()),
+                "com/lib/R$id.class", Fixtures.libraryRClass("com/lib/R$id",
+                        ImmutableMap.of("title", 0x7f0a0009), ImmutableMap.of())),
+                ZipEntry.DEFLATED);
+
+        proceed(JarProcessor.STORED, false);
+
+        assertEquals(Arrays.asList("com/lib/R.class", "com/lib/R$id.class"),
+                Arrays.asList(Fixtures.readJar(dst).keySet().toArray()));
+    }
+
+    @Test
+    public void writesNothingWithoutClasses() throws IOException {
+        Fixtures.writeJar(src, ImmutableMap.of("META-INF/MANIFEST.MF", new byte[]{'x'}), ZipEntry.DEFLATED);
+        Fixtures.write(dst, new byte[]{1});
+
+        proceed(JarProcessor.STORED, false);
+
+        assertFalse(Files.exists(dst));
+    }
+
+    @Test
+    public void proceedsEntriesOneByOneOutOfBudget() throws IOException {
+        Fixtures.writeJar(src, ImmutableMap.of(
+                "com/lib/Title.class", Fixtures.classReferringR("com/lib/Title", "com/app/R$id", "title"),
+                "com/lib/Plain.class", Fixtures.plainClass("com/lib/Plain")),
+                ZipEntry.DEFLATED);
+        MemoryBudget budget = MemoryBudget.ofMegabytes(1);
+        int held = budget.tryAcquire(budget.bytes());
+        assertNotEquals(0, held);
+
+        new JarProcessor(transform, src, dst, budget, new JarScanner(Runnable::run), JarProcessor.STORED, false)
+                .proceed();
+
+        assertEquals(Arrays.asList("com/lib/Title.class", "com/lib/Plain.class"),
+                Arrays.asList(Fixtures.readJar(dst).keySet().toArray()));
+        budget.release(held);
+    }
+
+    private void proceed(int compression, boolean immutable) {
+        new JarProcessor(transform, src, dst, MemoryBudget.ofMegabytes(1), new JarScanner(Runnable::run),
+                compression, immutable).proceed();
+    }
+
+    private void assertMethod(int method, String name) throws IOException {
+        try (ZipFile zip = new ZipFile(dst.toFile())) {
+            assertEquals(method, zip.getEntry(name).getMethod());
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import com.android.build.api.transform.QualifiedContent;
+import com.android.build.api.transform.Status;
+import com.android.build.api.transform.TransformInput;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author yrom
+ */
+public class RSymbolsTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readsConstantRClassesOfDirectories() throws IOException {
+        File dir = temporaryFolder.newFolder();
+        writeAppRClasses(dir, 0x7f0a0001);
+
+        RSymbols symbols = RSymbols.from(inputsOf(dir), null, null);
+
+        assertEquals(0x7f0a0001, valueOf(symbols, "com/app/R$id", "title"));
+        assertEquals(1, symbols.styleableCount());
+        assertArrayEquals(new int[]{0x7f010001, 0x7f010002}, symbols.styleableValues(0));
+    }
+
+    @Test
+    public void skipsNonFinalRClassesOfLibraries() throws IOException {
+        File dir = temporaryFolder.newFolder();
+        writeAppRClasses(dir, 0x7f0a0001);
+        Path library = temporaryFolder.getRoot().toPath().resolve("library.jar");
+        Fixtures.writeJar(library, ImmutableMap.of(
+                "com/lib/R$id.class", Fixtures.libraryRClass("com/lib/R$id",
+                        ImmutableMap.of("title", 0x7f0a0009), ImmutableMap.of()),
+                "com/lib/R$styleable.class", Fixtures.libraryRClass("com/lib/R$styleable",
+                        ImmutableMap.of("View_background", 0), ImmutableMap.of("View", new int[]{0x7f010008, 0x7f010009}))),
+                ZipEntry.DEFLATED);
+        TransformInput input = Fixtures.input(
+                Collections.singletonList(Fixtures.directory(dir, Collections.emptyMap())),
+                Collections.singletonList(Fixtures.jar(library.toFile(), Status.ADDED, QualifiedContent.Scope.SUB_PROJECTS)));
+
+        RSymbols symbols = RSymbols.from(Collections.singletonList(input), null, null);
+
+        // symbols are keyed by simple names of R classes, ids of the library would be mismatched
+        assertEquals(0x7f0a0001, valueOf(symbols, "com/lib/R$id", "title"));
+        assertEquals(1, symbols.styleableCount());
+        assertArrayEquals(new int[]{0x7f010001, 0x7f010002}, symbols.styleableValues(0));
+    }
+
+    @Test
+    public void readsConstantRClassesOfRJar() throws IOException {
+        Path rJar = temporaryFolder.getRoot().toPath().resolve("R.jar");
+        Fixtures.writeJar(rJar, ImmutableMap.of(
+                "com/app/R$id.class", Fixtures.rClass("com/app/R$id",
+                        ImmutableMap.of("title", 0x7f0a0001), ImmutableMap.of())),
+                ZipEntry.DEFLATED);
+        TransformInput input = Fixtures.input(Collections.emptyList(),
+                Collections.singletonList(Fixtures.jar(rJar.toFile(), Status.ADDED, QualifiedContent.Scope.PROJECT)));
+
+        RSymbols symbols = RSymbols.from(Collections.singletonList(input), null, null);
+
+        assertEquals(0x7f0a0001, valueOf(symbols, "com/app/R$id", "title"));
+    }
+
+    @Test
+    public void reportsMismatchedSymbols() {
+        RSymbols.Builder builder = new RSymbols.Builder();
+        builder.putSymbol("R$id.title", 1);
+        builder.putSymbol("R$id.title", 1);
+        builder.putSymbol("R$id.icon", 2);
+        builder.putSymbol("R$id.icon", 3);
+        assertMismatched(builder, "Value of R$id.icon mismatched! Excepted 0x2 but was 0x3");
+    }
+
+    @Test
+    public void reportsStyleablesWithDifferentValues() {
+        RSymbols.Builder sameValues = new RSymbols.Builder();
+        sameValues.putStyleable("View", new int[]{1, 2});
+        sameValues.putStyleable("View", new int[]{1, 2});
+        assertEquals(1, sameValues.build().styleableCount());
+
+        RSymbols.Builder sameLength = new RSymbols.Builder();
+        sameLength.putStyleable("View", new int[]{1, 2});
+        sameLength.putStyleable("View", new int[]{1, 3});
+        assertMismatched(sameLength, "Value of styleable.View mismatched! Excepted [1, 2] but was [1, 3]");
+
+        RSymbols.Builder otherLength = new RSymbols.Builder();
+        otherLength.putStyleable("View", new int[]{1, 2});
+        otherLength.putStyleable("View", new int[]{1});
+        assertMismatched(otherLength, "Value of styleable.View mismatched! Excepted [1, 2] but was [1]");
+    }
+
+    @Test
+    public void reportsMismatchesOfMergedBuilders() {
+        RSymbols.Builder first = new RSymbols.Builder();
+        first.putSymbol("R$id.title", 1);
+        RSymbols.Builder second = new RSymbols.Builder();
+        second.putSymbol("R$id.title", 2);
+        first.merge(second);
+        assertMismatched(first, "Value of R$id.title mismatched! Excepted 0x1 but was 0x2");
+    }
+
+    @Test
+    public void reusesCacheWhileSourcesAreTheSame() throws IOException {
+        File dir = temporaryFolder.newFolder();
+        writeAppRClasses(dir, 0x7f0a0001);
+        Path cache = temporaryFolder.getRoot().toPath().resolve("cache/symbols.bin");
+
+        RSymbols first = RSymbols.from(inputsOf(dir), null, cache);
+        assertTrue(Files.isRegularFile(cache));
+        FileTime written = FileTime.fromMillis(0);
+        Files.setLastModifiedTime(cache, written);
+
+        RSymbols second = RSymbols.from(inputsOf(dir), null, cache);
+        assertEquals(first.fingerprint(), second.fingerprint());
+        assertEquals("cache is rewritten", written, Files.getLastModifiedTime(cache));
+
+        writeAppRClasses(dir, 0x7f0a0002);
+        RSymbols changed = RSymbols.from(inputsOf(dir), null, cache);
+        assertEquals(0x7f0a0002, valueOf(changed, "com/app/R$id", "title"));
+        assertNotEquals(first.fingerprint(), changed.fingerprint());
+        assertNotEquals(written, Files.getLastModifiedTime(cache));
+        assertEquals(changed.fingerprint(), RSymbols.readFrom(cache).fingerprint());
+    }
+
+    @Test
+    public void keysCacheBySymbolList() throws IOException {
+        File dir = temporaryFolder.newFolder();
+        writeAppRClasses(dir, 0x7f0a0001);
+        Path symbolList = temporaryFolder.getRoot().toPath().resolve("R.txt");
+        Files.write(symbolList, "int id title 0x7f0a0003\n".getBytes(StandardCharsets.UTF_8));
+        Path cache = temporaryFolder.getRoot().toPath().resolve("symbols.bin");
+
+        RSymbols fromSymbolList = RSymbols.from(inputsOf(dir), symbolList, cache);
+        assertEquals(0x7f0a0003, valueOf(fromSymbolList, "com/app/R$id", "title"));
+
+        Files.write(symbolList, "int id title 0x7f0a0004\n".getBytes(StandardCharsets.UTF_8));
+        RSymbols changed = RSymbols.from(inputsOf(dir), symbolList, cache);
+        assertEquals(0x7f0a0004, valueOf(changed, "com/app/R$id", "title"));
+    }
+
+    @Test
+    public void ignoresBrokenCache() throws IOException {
+        File dir = temporaryFolder.newFolder();
+        writeAppRClasses(dir, 0x7f0a0001);
+        Path cache = temporaryFolder.getRoot().toPath().resolve("symbols.bin");
+        Files.write(cache, new byte[]{1, 2, 3});
+
+        RSymbols symbols = RSymbols.from(inputsOf(dir), null, cache);
+
+        assertEquals(0x7f0a0001, valueOf(symbols, "com/app/R$id", "title"));
+        assertEquals(symbols.fingerprint(), RSymbols.readFrom(cache).fingerprint());
+    }
+
+    @Test
+    public void fingerprintDependsOnValuesOnly() {
+        RSymbols.Builder first = new RSymbols.Builder();
+        first.putSymbol("R$id.title", 1);
+        first.putSymbol("R$id.icon", 2);
+        first.putStyleable("View", new int[]{1, 2});
+        RSymbols.Builder second = new RSymbols.Builder();
+        second.putStyleable("View", new int[]{1, 2});
+        second.putSymbol("R$id.icon", 2);
+        second.putSymbol("R$id.title", 1);
+        assertEquals(first.build().fingerprint(), second.build().fingerprint());
+
+        RSymbols.Builder third = new RSymbols.Builder();
+        third.putSymbol("R$id.title", 1);
+        third.putSymbol("R$id.icon", 2);
+        third.putStyleable("View", new int[]{2, 1});
+        assertNotEquals(first.build().fingerprint(), third.build().fingerprint());
+    }
+
+    private static void writeAppRClasses(File dir, int title) throws IOException {
+        Path root = dir.toPath().resolve("com/app");
+        Fixtures.write(root.resolve("R.class"),
+                Fixtures.rClass("com/app/R", ImmutableMap.of(), ImmutableMap.of()));
+        Fixtures.write(root.resolve("R$id.class"),
+                Fixtures.rClass("com/app/R$id", ImmutableMap.of("title", title), ImmutableMap.of()));
+        Fixtures.write(root.resolve("R$styleable.class"), Fixtures.rClass("com/app/R$styleable",
+                ImmutableMap.of("View_background", 0), ImmutableMap.of("View", new int[]{0x7f010001, 0x7f010002})));
+    }
+
+    private static List<TransformInput> inputsOf(File... dirs) {
+        return Collections.singletonList(Fixtures.input(Arrays.stream(dirs)
+                .map(dir -> Fixtures.directory(dir, Collections.emptyMap()))
+                .collect(Collectors.toList()), Collections.emptyList()));
+    }
+
+    private static void assertMismatched(RSymbols.Builder builder, String message) {
+        try {
+            builder.build();
+            fail("Expected mismatch " + message);
+        } catch (IllegalStateException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    private static int valueOf(RSymbols symbols, String owner, String name) {
+        int index = symbols.indexOf(owner, name);
+        assertTrue(owner + "." + name + " not found", index >= 0);
+        return symbols.valueAt(index);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * @author yrom
+ */
+public class SymbolIndexTest {
+
+    @Test
+    public void findsSymbolByOwnerOfAnyPackage() {
+        Map<String, Integer> symbols = new HashMap<>();
+        symbols.put("R$id.title", 0x7f0a0001);
+        symbols.put("R$string.title", 0x7f0b0001);
+        SymbolIndex index = new SymbolIndex(symbols);
+
+        assertEquals(0x7f0a0001, index.valueAt(index.indexOf("com/app/R$id", "title")));
+        assertEquals(0x7f0a0001, index.valueAt(index.indexOf("android/support/v7/appcompat/R$id", "title")));
+        assertEquals(0x7f0a0001, index.valueAt(index.indexOf("R$id", "title")));
+        assertEquals(0x7f0b0001, index.valueAt(index.indexOf("com/app/R$string", "title")));
+    }
+
+    @Test
+    public void missingSymbols() {
+        SymbolIndex index = new SymbolIndex(Collections.singletonMap("R$id.title", 1));
+
+        assertEquals(-1, index.indexOf("com/app/R$id", "titl"));
+        assertEquals(-1, index.indexOf("com/app/R$id", "title2"));
+        assertEquals(-1, index.indexOf("com/app/R$string", "title"));
+        assertEquals(-1, index.indexOf("com/app/R$i", "title"));
+        assertEquals(-1, index.indexOf("com/app/XR$id", "title"));
+        assertEquals(-1, index.indexOf("com/app/R", "title"));
+    }
+
+    @Test
+    public void emptyIndex() {
+        SymbolIndex index = new SymbolIndex(Collections.emptyMap());
+
+        assertEquals(0, index.size());
+        assertEquals(-1, index.indexOf("com/app/R$id", "title"));
+    }
+
+    @Test
+    public void entriesAreSortedByKey() {
+        Map<String, Integer> symbols = new HashMap<>();
+        symbols.put("R$string.app_name", 3);
+        symbols.put("R$id.title", 2);
+        symbols.put("R$id.icon", 1);
+        SymbolIndex index = new SymbolIndex(symbols);
+
+        assertEquals(3, index.size());
+        int i = 0;
+        for (Map.Entry<String, Integer> entry : new TreeMap<>(symbols).entrySet()) {
+            assertEquals(entry.getKey(), index.typeAt(i) + '.' + index.nameAt(i));
+            assertEquals((int) entry.getValue(), index.valueAt(i));
+            assertEquals(i, index.indexOf("com/app/" + index.typeAt(i), index.nameAt(i)));
+            i++;
+        }
+    }
+
+    @Test
+    public void collidedHashesAreProbed() {
+        // "Aa" and "BB" have the same String.hashCode(), so do names built from them
+        String[] parts = {"Aa", "BB"};
+        Map<String, Integer> symbols = new HashMap<>();
+        int value = 0;
+        for (String a : parts) {
+            for (String b : parts) {
+                for (String c : parts) {
+                    symbols.put("R$id." + a + b + c, value++);
+                }
+            }
+        }
+        assertEquals("AaAaAa".hashCode(), "BBBBBB".hashCode());
+        SymbolIndex index = new SymbolIndex(symbols);
+
+        for (Map.Entry<String, Integer> entry : symbols.entrySet()) {
+            String name = entry.getKey().substring("R$id.".length());
+            assertEquals((int) entry.getValue(), index.valueAt(index.indexOf("com/app/R$id", name)));
+        }
+        assertEquals(-1, index.indexOf("com/app/R$id", "AaAaBb"));
+    }
+
+    @Test
+    public void manySymbols() {
+        Map<String, Integer> symbols = new HashMap<>();
+        String[] types = {"R$id", "R$string", "R$layout", "R$attr", "R$drawable"};
+        for (int i = 0; i < 20000; i++) {
+            symbols.put(types[i % types.length] + ".symbol_" + i, 0x7f000000 + i);
+        }
+        SymbolIndex index = new SymbolIndex(symbols);
+
+        assertEquals(symbols.size(), index.size());
+        for (int i = 0; i < 20000; i++) {
+            int found = index.indexOf("com/app/" + types[i % types.length], "symbol_" + i);
+            assertNotEquals(-1, found);
+            assertEquals(0x7f000000 + i, index.valueAt(found));
+            assertEquals(-1, index.indexOf("com/app/" + types[(i + 1) % types.length], "symbol_" + i));
+        }
+    }
+}
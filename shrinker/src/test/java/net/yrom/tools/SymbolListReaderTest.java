@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Yrom Wang
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package net.yrom.tools;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author yrom
+ */
+public class SymbolListReaderTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void readsSymbolsAndStyleables() throws IOException {
+        RSymbols symbols = read("int id title 0x7f0a0001\n"
+                + "int[] styleable View { 0x7f010001, 0x7f010002 }\n"
+                + "int styleable View_background 1\n");
+
+        assertEquals(0x7f0a0001, valueOf(symbols, "com/app/R$id", "title"));
+        assertEquals(1, valueOf(symbols, "com/app/R$styleable", "View_background"));
+        assertEquals(1, symbols.styleableCount());
+        assertEquals("View", symbols.styleableName(0));
+        assertArrayEquals(new int[]{0x7f010001, 0x7f010002}, symbols.styleableValues(0));
+    }
+
+    @Test
+    public void readsNumbers() throws IOException {
+        RSymbols symbols = read("int id upper 0X7F0A000F\n"
+                + "int id lower 0x7f0a000f\n"
+                + "int id decimal 2131361793\n"
+                + "int id max 0xffffffff\n");
+
+        assertEquals(0x7f0a000f, valueOf(symbols, "a/R$id", "upper"));
+        assertEquals(0x7f0a000f, valueOf(symbols, "a/R$id", "lower"));
+        assertEquals(2131361793, valueOf(symbols, "a/R$id", "decimal"));
+        assertEquals(-1, valueOf(symbols, "a/R$id", "max"));
+    }
+
+    @Test
+    public void readsIntArrays() throws IOException {
+        StringBuilder text = new StringBuilder("int[] styleable Empty {  }\n")
+                .append("int[] styleable Compact {0x1,0x2}\n")
+                .append("int[] styleable Large {");
+        int[] large = new int[100];
+        for (int i = 0; i < large.length; i++) {
+            large[i] = 0x7f010000 + i;
+            text.append(i == 0 ? " " : ", ").append("0x").append(Integer.toHexString(large[i]));
+        }
+        text.append(" }\n");
+        RSymbols symbols = read(text.toString());
+
+        assertEquals(3, symbols.styleableCount());
+        for (int i = 0; i < symbols.styleableCount(); i++) {
+            switch (symbols.styleableName(i)) {
+                case "Empty":
+                    assertArrayEquals(new int[0], symbols.styleableValues(i));
+                    break;
+                case "Compact":
+                    assertArrayEquals(new int[]{1, 2}, symbols.styleableValues(i));
+                    break;
+                case "Large":
+                    assertArrayEquals(large, symbols.styleableValues(i));
+                    break;
+                default:
+                    fail("Unexpected styleable " + symbols.styleableName(i));
+            }
+        }
+    }
+
+    @Test
+    public void skipsBlanksAndCarriageReturns() throws IOException {
+        RSymbols symbols = read("\r\n\n  int\tid  title   0x1 \r\n\n\tint id icon 0x2");
+
+        assertEquals(1, valueOf(symbols, "a/R$id", "title"));
+        assertEquals(2, valueOf(symbols, "a/R$id", "icon"));
+    }
+
+    @Test
+    public void emptyFile() throws IOException {
+        assertTrue(read("").isEmpty());
+        assertTrue(read("\n \n").isEmpty());
+    }
+
+    @Test
+    public void reportsMalformedLines() throws IOException {
+        String valid = "int id title 0x1\n\n";
+        assertMalformed(valid + "long id count 1\n", "Unknown type 'long'", 3);
+        assertMalformed(valid + "int id count zz\n", "Expected a number", 3);
+        assertMalformed(valid + "int id count 0x\n", "Expected a number", 3);
+        assertMalformed(valid + "int id count 0x100000000\n", "Too large number", 3);
+        assertMalformed(valid + "int id\n", "Expected a word", 3);
+        assertMalformed(valid + "int[] styleable View 0x1, 0x2\n", "Expected '{'", 3);
+        assertMalformed(valid + "int[] styleable View { 0x1 0x2 }\n", "Expected ','", 3);
+        assertMalformed(valid + "int[] styleable View { 0x1, 0x2", "Expected '}'", 3);
+    }
+
+    private void assertMalformed(String text, String message, int line) throws IOException {
+        File file = temporaryFolder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        try {
+            SymbolListReader.read(file.toPath(), new RSymbols.Builder());
+            fail("Expected an error for " + text);
+        } catch (IOException e) {
+            assertEquals(message + " at " + file + ":" + line, e.getMessage());
+        }
+    }
+
+    private RSymbols read(String text) throws IOException {
+        File file = temporaryFolder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+        RSymbols.Builder builder = new RSymbols.Builder();
+        SymbolListReader.read(file.toPath(), builder);
+        return builder.build();
+    }
+
+    private static int valueOf(RSymbols symbols, String owner, String name) {
+        int index = symbols.indexOf(owner, name);
+        assertTrue(owner + "." + name + " not found", index >= 0);
+        return symbols.valueAt(index);
+    }
+}